@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares the binary commit format with Java serialization
+ *  (Utils.serialize), which the first release stored commits in.  The
+ *  serialized commit is a Legacy.OldCommit, which has the released
+ *  fields; its map of files is left empty, so that both forms hold the
+ *  same information.
+ *  @author Felix Yu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+
+    /** A merge commit. */
+    private Commit commit;
+
+    /** COMMIT in the binary format. */
+    private byte[] encoded;
+
+    /** COMMIT in the released form. */
+    private Legacy.OldCommit oldCommit;
+
+    /** OLDCOMMIT serialized. */
+    private byte[] serialized;
+
+    /** Makes the commit and its stored forms. */
+    @Setup(Level.Trial)
+    public void createCommit() {
+        commit = new Commit();
+        commit.setFirstCommitDate();
+        commit.addParent(Utils.sha1("first parent"));
+        commit.addParent(Utils.sha1("second parent"));
+        commit.setTree(Utils.sha1("tree"));
+        commit.setMessage("Merged other into master.");
+        encoded = commit.encode();
+        oldCommit = new Legacy.OldCommit(Utils.sha1(encoded),
+                                         commit.getParent(),
+                                         commit.getCommitDate(),
+                                         new HashMap<>(),
+                                         commit.getMessage());
+        serialized = Utils.serialize(oldCommit);
+    }
+
+    /** Encodes the commit in the binary format. */
+    @Benchmark
+    public byte[] encode() {
+        return commit.encode();
+    }
+
+    /** Decodes the commit from the binary format. */
+    @Benchmark
+    public Commit decode() {
+        return Commit.decode(commit.getSHA_ID(), ByteBuffer.wrap(encoded));
+    }
+
+    /** Serializes the commit in the released form. */
+    @Benchmark
+    public byte[] serialize() {
+        return Utils.serialize(oldCommit);
+    }
+
+    /** Deserializes the commit in the released form, as
+     *  Utils.readObject does. */
+    @Benchmark
+    public Legacy.OldCommit deserialize()
+        throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                 new ByteArrayInputStream(serialized))) {
+            return (Legacy.OldCommit) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package gitlet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Times whole gitlet commands, run through Main as from the command
+ *  line, on a synthetic repository built by RepoGenerator in the current
+ *  directory.  Commands that change the repository (add, commit) are
+ *  given fresh changes before each invocation, so the history grows by
+ *  one commit per invocation of commit.
+ *  @author Felix Yu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBench {
+
+    /** Number of files in the repository. */
+    @Param({ "1000" })
+    public int files;
+
+    /** Size of each file in bytes. */
+    @Param({ "4096" })
+    public int fileSize;
+
+    /** Number of commits on master. */
+    @Param({ "1000" })
+    public int commits;
+
+    /** Number of branches, including master. */
+    @Param({ "4" })
+    public int branches;
+
+    /** Number of files changed before each add or commit. */
+    @Param({ "10" })
+    public int changed;
+
+    /** Generator of the repository and of later changes. */
+    private RepoGenerator generator;
+
+    /** The branch checked out by the next checkout. */
+    private String nextBranch;
+
+    /** Builds the repository. */
+    @Setup(Level.Trial)
+    public void createRepository() throws IOException {
+        generator = new RepoGenerator(files, fileSize, 61);
+        generator.create(commits, branches);
+        nextBranch = branches > 1 ? "b1" : null;
+    }
+
+    /** Files changed in the working directory before each invocation. */
+    @State(Scope.Thread)
+    public static class Changed {
+        /** Changes some files of the repository of BENCH. */
+        @Setup(Level.Invocation)
+        public void change(CommandBench bench) {
+            bench.generator.modify(bench.changed);
+        }
+    }
+
+    /** Files changed and staged before each invocation. */
+    @State(Scope.Thread)
+    public static class Staged {
+        /** Changes and stages some files of the repository of BENCH. */
+        @Setup(Level.Invocation)
+        public void stage(CommandBench bench) throws IOException {
+            bench.generator.modify(bench.changed);
+            RepoGenerator.run("add", RepoGenerator.DATA.getPath());
+        }
+    }
+
+    /** Stages the changed files, after rehashing only those whose stat
+     *  data changed. */
+    @Benchmark
+    public void add(Changed changes) throws IOException {
+        RepoGenerator.run("add", RepoGenerator.DATA.getPath());
+    }
+
+    /** Commits the staged files. */
+    @Benchmark
+    public void commit(Staged changes) throws IOException {
+        RepoGenerator.run("commit", "benchmark");
+    }
+
+    /** Reports the status of the working directory. */
+    @Benchmark
+    public void status() throws IOException {
+        RepoGenerator.run("status");
+    }
+
+    /** Prints the history of the current branch. */
+    @Benchmark
+    public void log() throws IOException {
+        RepoGenerator.run("log");
+    }
+
+    /** Prints every commit. */
+    @Benchmark
+    public void globalLog() throws IOException {
+        RepoGenerator.run("global-log");
+    }
+
+    /** Finds the commits whose message contains some text. */
+    @Benchmark
+    public void find() throws IOException {
+        RepoGenerator.run("find", "--grep", "commit 5");
+    }
+
+    /** Switches between master and another branch. */
+    @Benchmark
+    public void checkout() throws IOException {
+        if (nextBranch == null) {
+            return;
+        }
+        RepoGenerator.run("checkout", nextBranch);
+        nextBranch = nextBranch.equals("master") ? "b1" : "master";
+    }
+}
@@ -0,0 +1,124 @@
+package gitlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Times the ancestry queries of merge on a synthetic commit graph,
+ *  written directly to .gitlet/commit-graph in the current directory
+ *  without making any commits.  The graph has a main line of COMMITS
+ *  commits; every MERGE_EVERY of them, a side branch of SIDE_LENGTH
+ *  commits forks from a little way back and is merged in again, so the
+ *  walks meet merge commits as in a real history.  A second branch of
+ *  OTHER_LENGTH commits forks from the main line DISTANCE commits before
+ *  its tip, and the queries are asked of the two tips.
+ *  @author Felix Yu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBench {
+
+    /** Number of main line commits between side branches. */
+    private static final int MERGE_EVERY = 50;
+    /** Number of commits on each side branch. */
+    private static final int SIDE_LENGTH = 5;
+    /** Number of commits on the branch being merged. */
+    private static final int OTHER_LENGTH = 10;
+
+    /** Number of commits on the main line. */
+    @Param({ "100000" })
+    public int commits;
+
+    /** Number of main line commits after the fork of the merged
+     *  branch. */
+    @Param({ "10", "1000", "90000" })
+    public int distance;
+
+    /** The graph. */
+    private CommitGraph graph;
+
+    /** Positions of the main line tip, the other branch's tip and the
+     *  commit the other branch forked from. */
+    private int head, other, fork;
+
+    /** Number of commits added so far. */
+    private int made;
+
+    /** Writes the graph and checks that it has the expected merge
+     *  base. */
+    @Setup(Level.Trial)
+    public void createGraph() {
+        RepoGenerator.delete(Main.gitletDir);
+        Main.gitletDir.mkdir();
+        Main.commits.mkdir();
+        graph = new CommitGraph(id -> {
+            throw new IllegalStateException("no commits to read");
+        });
+        int[] main = new int[commits];
+        main[0] = add(-1, -1);
+        fork = -1;
+        for (int k = 1; k < commits; k += 1) {
+            if (k % MERGE_EVERY == 0) {
+                int side = main[k - MERGE_EVERY / 2];
+                for (int i = 0; i < SIDE_LENGTH; i += 1) {
+                    side = add(side, -1);
+                }
+                main[k] = add(main[k - 1], side);
+            } else {
+                main[k] = add(main[k - 1], -1);
+            }
+            if (k == commits - 1 - distance) {
+                fork = main[k];
+            }
+        }
+        head = main[commits - 1];
+        other = fork;
+        for (int i = 0; i < OTHER_LENGTH; i += 1) {
+            other = add(other, -1);
+        }
+        try (RefLock lock = RefLock.acquire()) {
+            graph.save();
+        }
+        if (graph.mergeBase(head, other) != fork
+            || !graph.isAncestor(fork, head)
+            || graph.isAncestor(other, head)) {
+            throw new IllegalStateException("wrong merge base");
+        }
+    }
+
+    /** Adds a commit with parents at PARENT1 and PARENT2 (-1 if absent),
+     *  returning its position. */
+    private int add(int parent1, int parent2) {
+        made += 1;
+        return graph.add(Utils.sha1("commit " + made), parent1, parent2,
+                         made * 1000L);
+    }
+
+    /** Finds the split point of the two branches. */
+    @Benchmark
+    public int mergeBase() {
+        return graph.mergeBase(head, other);
+    }
+
+    /** Checks whether the other branch is already merged, as merge does
+     *  first. */
+    @Benchmark
+    public boolean isAncestor() {
+        return graph.isAncestor(other, head);
+    }
+}
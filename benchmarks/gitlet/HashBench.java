@@ -0,0 +1,69 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Times Utils.sha1 on contents in memory and on a file.
+ *  @author Felix Yu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBench {
+
+    /** Size of the hashed contents in bytes. */
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    /** The contents. */
+    private byte[] contents;
+
+    /** A file holding the contents. */
+    private File file;
+
+    /** Makes the contents and writes them to a file. */
+    @Setup(Level.Trial)
+    public void createContents() throws IOException {
+        contents = new byte[size];
+        new Random(61).nextBytes(contents);
+        file = File.createTempFile("hashbench", ".bin", new File("."));
+        Utils.writeContents(file, contents);
+    }
+
+    /** Deletes the file. */
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /** Hashes the contents in memory. */
+    @Benchmark
+    public String sha1Bytes() {
+        return Utils.sha1(contents);
+    }
+
+    /** Hashes the file, streaming it through the digest. */
+    @Benchmark
+    public String sha1File() {
+        return Utils.sha1(file);
+    }
+}
@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Times the merge command, run through Main, on a synthetic repository
+ *  in the current directory whose master has a history of COMMITS
+ *  commits.  A branch forks from master DISTANCE commits before its tip
+ *  and adds one file, so that each merge must find a split point that
+ *  far back and then merges cleanly.  All but the first few commits are
+ *  written by RepoGenerator.extend.  Each invocation merges into a new
+ *  branch made at the tip of master.
+ *  @author Felix Yu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBench {
+
+    /** Number of commits made by commit, before those written
+     *  directly. */
+    private static final int MADE = 10;
+
+    /** Number of files in the repository. */
+    @Param({ "1000" })
+    public int files;
+
+    /** Number of commits on master. */
+    @Param({ "100000" })
+    public int commits;
+
+    /** Number of master commits after the fork of the merged branch. */
+    @Param({ "10", "1000", "90000" })
+    public int distance;
+
+    /** Number of branches merged into so far. */
+    private int merges;
+
+    /** Builds the repository. */
+    @Setup(Level.Trial)
+    public void createRepository() throws IOException {
+        RepoGenerator generator = new RepoGenerator(files, 4096, 61);
+        generator.create(MADE, 1);
+        generator.extend(commits - distance - MADE);
+        RepoGenerator.run("branch", "other");
+        generator.extend(distance);
+        RepoGenerator.run("checkout", "other");
+        Utils.writeContents(new File(RepoGenerator.DATA, "other.txt"),
+                            "other\n");
+        RepoGenerator.run("add", RepoGenerator.DATA.getPath());
+        RepoGenerator.run("commit", "other");
+        RepoGenerator.run("checkout", "master");
+    }
+
+    /** Checks out a new branch at the tip of master before each
+     *  invocation. */
+    @Setup(Level.Invocation)
+    public void branch() throws IOException {
+        if (merges > 0) {
+            RepoGenerator.run("checkout", "master");
+        }
+        merges += 1;
+        RepoGenerator.run("branch", "m" + merges);
+        RepoGenerator.run("checkout", "m" + merges);
+    }
+
+    /** Merges the other branch into the current one. */
+    @Benchmark
+    public void merge() throws IOException {
+        RepoGenerator.run("merge", "other");
+    }
+}
@@ -0,0 +1,167 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.Random;
+
+/** Builds synthetic repositories for the benchmarks in the current
+ *  directory, by running gitlet commands through Main.  A repository has
+ *  FILES files of about FILESIZE bytes each, spread over subdirectories
+ *  of data/, a history of COMMITS commits on master that each change a
+ *  few files, and BRANCHES branches (master included) pointing at
+ *  evenly spaced commits of that history.  The same parameters and seed
+ *  always give the same repository contents.  Longer histories are
+ *  added by extend, which writes the commits directly.
+ *  @author Felix Yu
+ */
+class RepoGenerator {
+
+    /** Directory of the generated files. */
+    static final File DATA = new File("data");
+
+    /** Number of files per subdirectory of DATA. */
+    private static final int FILES_PER_DIR = 64;
+
+    /** Standard output, while commands are silenced. */
+    private static final PrintStream STDOUT = System.out;
+
+    /** Discards whatever is written to it. */
+    private static final PrintStream NULL = new PrintStream(
+        new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+    /** Number of files. */
+    private final int files;
+    /** Approximate size of each file in bytes. */
+    private final int fileSize;
+    /** Source of file contents. */
+    private final Random random;
+
+    /** A generator of repositories with FILES files of about FILESIZE
+     *  bytes, whose contents are drawn from SEED. */
+    RepoGenerator(int files, int fileSize, long seed) {
+        this.files = files;
+        this.fileSize = fileSize;
+        this.random = new Random(seed);
+    }
+
+    /** Replaces any repository in the current directory by one with
+     *  COMMITS commits and BRANCHES branches, leaving master checked
+     *  out. */
+    void create(int commits, int branches) throws IOException {
+        delete(Main.gitletDir);
+        delete(DATA);
+        run("init");
+        for (int k = 0; k < files; k += 1) {
+            write(k);
+        }
+        run("add", DATA.getPath());
+        run("commit", "commit 0");
+        int spacing = Math.max(1, commits / Math.max(1, branches));
+        for (int c = 1; c < commits; c += 1) {
+            if (c % spacing == 0 && c / spacing < branches) {
+                run("branch", "b" + c / spacing);
+            }
+            commit(c);
+        }
+    }
+
+    /** Changes a few files and commits them as commit C of the
+     *  history. */
+    void commit(int c) throws IOException {
+        modify(Math.max(1, files / 100));
+        run("add", DATA.getPath());
+        run("commit", "commit " + c);
+    }
+
+    /** Adds N commits to the current branch, written directly to
+     *  .gitlet/commits rather than made by commit, so that histories of
+     *  100,000 commits take seconds to build.  Each keeps the files of
+     *  the branch's head.  The commit graph and the indexes built from
+     *  the commits are deleted, for the next command to rebuild, and the
+     *  branch is moved to the last new commit by reset. */
+    void extend(int n) throws IOException {
+        MetaStore store = new MetaStore();
+        String id = store.readRef(store.currentBranch());
+        Commit head = Commit.read(id);
+        long time = head.getCommitDate().getTime();
+        for (int i = 1; i <= n; i += 1) {
+            Commit commit = new Commit();
+            commit.addParent(id);
+            commit.setCommitDate(new Date(time + i * 1000L));
+            commit.setTree(head.getTree());
+            commit.setMessage("extended " + id.substring(0, 8));
+            id = commit.write();
+        }
+        for (File derived : new File[] {
+                CommitGraph.GRAPH_FILE, CommitIndex.SORTED_FILE,
+                CommitIndex.RECENT_FILE, MessageIndex.SORTED_FILE,
+                MessageIndex.RECENT_FILE, PathFilters.FILTERS_FILE }) {
+            derived.delete();
+        }
+        run("reset", id);
+    }
+
+    /** Rewrites the contents of N randomly chosen files. */
+    void modify(int n) {
+        for (int i = 0; i < n; i += 1) {
+            write(random.nextInt(files));
+        }
+    }
+
+    /** Returns the path of file K. */
+    String path(int k) {
+        return DATA.getPath() + "/d" + (k / FILES_PER_DIR) + "/f" + k + ".txt";
+    }
+
+    /** Runs the gitlet command ARGS as Main does, discarding its output.
+     *  Throws an IllegalStateException if the command fails, so that a
+     *  benchmark never times a command that only reported an error. */
+    static void run(String... args) throws IOException {
+        System.setOut(NULL);
+        try {
+            Main.execute(args);
+        } catch (GitletException excp) {
+            throw new IllegalStateException(
+                "gitlet " + String.join(" ", args) + ": "
+                + excp.getMessage(), excp);
+        } finally {
+            System.setOut(STDOUT);
+        }
+    }
+
+    /** Writes new random contents to file K. */
+    private void write(int k) {
+        File file = new File(path(k));
+        file.getParentFile().mkdirs();
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < contents.length; i += 1) {
+            contents[i] = (byte) ('a' + random.nextInt(26));
+            if (i % 64 == 63) {
+                contents[i] = '\n';
+            }
+        }
+        Utils.writeContents(file, contents);
+    }
+
+    /** Deletes FILE and, if it is a directory, everything under it. */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,298 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/** The blobs of a repository.  New blobs are written loose, one file per
+ *  blob under .gitlet/blobs; the gc command moves them into compressed,
+ *  delta-encoded packs under .gitlet/packs (see Pack).  Files at least as
+ *  large as Chunks.threshold() are instead stored as chunks (see Chunks),
+ *  and are never packed.
+ *  @author Felix Yu
+ */
+class BlobStore {
+
+    /** Directory holding the packs. */
+    static final File PACKS_DIR = Utils.join(Main.gitletDir, "packs");
+
+    /** Maximum number of deltas that must be applied to read a blob. */
+    private static final int MAX_DELTA_DEPTH = 10;
+
+    /** The open packs, or null if they have not been opened yet.  The
+     *  list is replaced, never changed, so a caller may go on reading the
+     *  list it was given. */
+    private static List<Pack> packs;
+
+    /** Returns the open packs, opening them on first use. */
+    private static synchronized List<Pack> packs() {
+        if (packs == null) {
+            packs = openPacks(new ArrayList<>());
+        }
+        return packs;
+    }
+
+    /** Returns the packs now in .gitlet/packs, reusing those of OLD that
+     *  are still there and closing the others. */
+    private static List<Pack> openPacks(List<Pack> old) {
+        HashMap<File, Pack> open = new HashMap<>();
+        for (Pack pack : old) {
+            open.put(pack.indexFile(), pack);
+        }
+        List<Pack> result = new ArrayList<>();
+        List<String> names = Utils.plainFilenamesIn(PACKS_DIR);
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(".idx")) {
+                    File idx = Utils.join(PACKS_DIR, name);
+                    Pack pack = open.remove(idx);
+                    result.add(pack != null ? pack : new Pack(idx));
+                }
+            }
+        }
+        for (Pack pack : open.values()) {
+            pack.close();
+        }
+        return result;
+    }
+
+    /** Returns the pack holding the blob with ID, or null if no pack
+     *  holds it.  A blob not found is looked for again after rereading
+     *  the list of packs, since a gc run by another process (while this
+     *  one is a server, say) may have packed it since the packs were
+     *  opened. */
+    private static Pack packWith(String id) {
+        List<Pack> current = packs();
+        for (Pack pack : current) {
+            if (pack.contains(id)) {
+                return pack;
+            }
+        }
+        synchronized (BlobStore.class) {
+            if (packs == current) {
+                packs = openPacks(current);
+            }
+            current = packs;
+        }
+        for (Pack pack : current) {
+            if (pack.contains(id)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    /** Returns true iff the blob with ID is stored. */
+    static boolean contains(String id) {
+        return Utils.join(Main.blobs, id).isFile() || Chunks.contains(id)
+            || packWith(id) != null;
+    }
+
+    /** Stores the contents of SOURCE as the blob with ID, unless a blob
+     *  with that id is already stored.  The blob is copied to a temporary
+     *  file and renamed into place, so concurrent stores of the same blob
+     *  are harmless. */
+    static void put(String id, File source) throws IOException {
+        if (contains(id)) {
+            return;
+        }
+        if (Chunks.isLarge(source)) {
+            Chunks.put(id, source);
+        } else {
+            Main.tmpDir.mkdir();
+            Path tmp = Files.createTempFile(Main.tmpDir.toPath(), id, ".tmp");
+            try {
+                Files.copy(source.toPath(), tmp,
+                           StandardCopyOption.REPLACE_EXISTING);
+                Stats.count(Stats.Counter.BYTES_WRITTEN, Files.size(tmp));
+                File blob = Utils.join(Main.blobs, id);
+                Files.move(tmp, blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Journal.written(blob);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /** Returns the contents of the blob with ID, or null if there is no
+     *  such blob.  Callers that may meet large files use writeTo, which
+     *  does not hold the blob in memory. */
+    static byte[] read(String id) {
+        File loose = Utils.join(Main.blobs, id);
+        if (loose.isFile()) {
+            return Utils.readContents(loose);
+        }
+        if (Chunks.contains(id)) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            try {
+                Chunks.writeTo(id, result);
+            } catch (IOException excp) {
+                throw Utils.error("Cannot read blob %s: %s", id,
+                                  excp.getMessage());
+            }
+            return result.toByteArray();
+        }
+        Pack pack = packWith(id);
+        return pack == null ? null : pack.read(id);
+    }
+
+    /** Writes the contents of the blob with ID to TARGET, replacing any
+     *  existing file.  Loose blobs and chunks are copied file to file with
+     *  FileChannel.transferTo, which leaves the copy to the kernel (and
+     *  lets filesystems that support it share the blocks instead); packed
+     *  blobs are inflated from the mapped pack (see Pack.transferTo). */
+    static void copyTo(String id, File target) throws IOException {
+        try (FileChannel out = FileChannel.open(
+                 target.toPath(), StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING,
+                 StandardOpenOption.WRITE)) {
+            File loose = Utils.join(Main.blobs, id);
+            if (loose.isFile()) {
+                transfer(loose, out);
+                return;
+            }
+            if (Chunks.contains(id)) {
+                for (File chunk : Chunks.files(id)) {
+                    transfer(chunk, out);
+                }
+                return;
+            }
+            Pack pack = packWith(id);
+            if (pack == null || !pack.transferTo(id, out)) {
+                throw Utils.error("Missing blob %s.", id);
+            }
+        } finally {
+            Stats.count(Stats.Counter.BYTES_WRITTEN, target.length());
+        }
+    }
+
+    /** Appends the contents of SOURCE to OUT. */
+    private static void transfer(File source, FileChannel out)
+        throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(),
+                                               StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long pos = 0; pos < size;) {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+        }
+    }
+
+    /** Writes the contents of the blob with ID to OUT.  Loose and chunked
+     *  blobs, and packed blobs stored whole, are streamed; only a packed
+     *  delta is resolved in memory (see Pack.transferTo). */
+    static void writeTo(String id, OutputStream out) throws IOException {
+        File loose = Utils.join(Main.blobs, id);
+        if (loose.isFile()) {
+            Files.copy(loose.toPath(), out);
+        } else if (Chunks.contains(id)) {
+            Chunks.writeTo(id, out);
+        } else {
+            Pack pack = packWith(id);
+            if (pack == null
+                || !pack.transferTo(id, Channels.newChannel(out))) {
+                throw Utils.error("Missing blob %s.", id);
+            }
+        }
+    }
+
+    /** Moves every stored blob into a single new pack, delta-encoding each
+     *  version of a file against the version before it.  HISTORY maps file
+     *  names to the ids of their versions, oldest first.  Loose blobs of
+     *  large files are stored as chunks instead.  Only a version and the
+     *  one it is delta-encoded against are held in memory at a time; a
+     *  blob with no other version to encode against is streamed into the
+     *  pack.  The caller must hold the RefLock.  The pack is streamed to
+     *  disk and forced there before it is installed, and only then are
+     *  the old packs and the loose blobs it holds deleted, so a crash at
+     *  any point loses no blob. */
+    static void repack(TreeMap<String, List<String>> history)
+        throws IOException {
+        synchronized (BlobStore.class) {
+            packs = openPacks(packs());
+        }
+        List<String> loose = new ArrayList<>();
+        for (String id : Utils.plainFilenamesIn(Main.blobs)) {
+            File file = Utils.join(Main.blobs, id);
+            if (Chunks.isLarge(file)) {
+                Chunks.put(id, file);
+                file.delete();
+            } else {
+                loose.add(id);
+            }
+        }
+        List<Pack> old = packs();
+        if (loose.isEmpty() && old.size() <= 1) {
+            return;
+        }
+        TreeMap<String, Boolean> all = new TreeMap<>();
+        for (String id : loose) {
+            all.put(id, true);
+        }
+        for (Pack pack : old) {
+            for (int k = 0; k < pack.size(); k += 1) {
+                all.put(pack.idAt(k), true);
+            }
+        }
+        PACKS_DIR.mkdir();
+        File newIdx;
+        try (Pack.Writer writer = new Pack.Writer(PACKS_DIR)) {
+            HashMap<String, Integer> depth = new HashMap<>();
+            for (List<String> versions : history.values()) {
+                List<String> unpacked = new ArrayList<>();
+                for (String id : versions) {
+                    if (all.remove(id) != null) {
+                        unpacked.add(id);
+                    }
+                }
+                if (unpacked.size() == 1) {
+                    String id = unpacked.get(0);
+                    writer.add(id, out -> writeTo(id, out));
+                    continue;
+                }
+                String baseID = null;
+                byte[] base = null;
+                for (String id : unpacked) {
+                    if (baseID != null
+                        && depth.get(baseID) >= MAX_DELTA_DEPTH) {
+                        baseID = null;
+                        base = null;
+                    }
+                    byte[] contents = read(id);
+                    boolean delta = writer.add(id, contents, baseID, base);
+                    depth.put(id, delta ? depth.get(baseID) + 1 : 0);
+                    baseID = id;
+                    base = contents;
+                }
+            }
+            for (String id : all.keySet()) {
+                writer.add(id, out -> writeTo(id, out));
+            }
+            newIdx = writer.write();
+        }
+        for (Pack pack : old) {
+            if (pack.indexFile().equals(newIdx)) {
+                pack.close();
+            } else {
+                pack.delete();
+            }
+        }
+        for (String id : loose) {
+            Utils.join(Main.blobs, id).delete();
+        }
+        synchronized (BlobStore.class) {
+            packs = openPacks(new ArrayList<>());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** The store of large blobs, which are split into content-defined chunks
+ *  so that versions of a large file share the chunks they have in common
+ *  and no file is ever held in memory whole.  Each chunk is stored once,
+ *  in .gitlet/chunks/ID where ID is the SHA-1 of its bytes, and a chunked
+ *  blob is the list .gitlet/chunk-lists/ID, where ID is the blob's usual
+ *  id (the SHA-1 of its whole contents):
+ *      magic, version, total length (long), number of chunks N,
+ *      N times: chunk id (20 bytes), chunk length (int)
+ *
+ *  A chunk ends where a gear hash of the bytes before it has its top
+ *  MASK_BITS bits zero, but never before MIN_CHUNK bytes or after
+ *  MAX_CHUNK bytes, so an edit only changes the chunks around it.  Large
+ *  files are chunked only if a threshold is set by the system property
+ *  gitlet.largeFiles (see the option -c of Main.main) or the environment
+ *  variable GITLET_LARGE_FILES (a number of bytes, optionally followed by
+ *  k, m or g); files of at least that size are then stored as chunks.
+ *  @author Felix Yu
+ */
+class Chunks {
+
+    /** Directory holding the chunks. */
+    static final File CHUNKS_DIR = Utils.join(Main.gitletDir, "chunks");
+    /** Directory holding the chunk lists of chunked blobs. */
+    static final File LISTS_DIR = Utils.join(Main.gitletDir, "chunk-lists");
+
+    /** First int of a chunk list. */
+    private static final int MAGIC = 0x67434b4c;
+    /** Version of the chunk list format. */
+    private static final int VERSION = 1;
+
+    /** Smallest and largest chunk sizes. */
+    private static final int MIN_CHUNK = 256 * 1024, MAX_CHUNK = 4 << 20;
+    /** Number of hash bits that must be zero at a chunk boundary; chunks
+     *  average MIN_CHUNK plus 2 to this power bytes. */
+    private static final int MASK_BITS = 20;
+    /** Mask of the hash bits tested at a boundary. */
+    private static final long MASK =
+        ((1L << MASK_BITS) - 1) << (64 - MASK_BITS);
+    /** Size of the blocks in which files are read. */
+    private static final int BLOCK = 1 << 16;
+
+    /** Random values mixed into the hash for each byte value.  They are
+     *  drawn from a fixed seed, since chunk boundaries must not change
+     *  between runs. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Returns the configured size from which files are chunked, or
+     *  Long.MAX_VALUE if large files are not chunked. */
+    static long threshold() {
+        return Utils.sizeProperty("gitlet.largeFiles", "GITLET_LARGE_FILES",
+                                  Long.MAX_VALUE);
+    }
+
+    /** Returns true iff FILE should be stored as chunks. */
+    static boolean isLarge(File file) {
+        return file.length() >= threshold();
+    }
+
+    /** Returns true iff the blob with ID is stored as chunks. */
+    static boolean contains(String id) {
+        return Utils.join(LISTS_DIR, id).isFile();
+    }
+
+    /** Stores the contents of SOURCE as the chunked blob with ID, reading
+     *  it in blocks and storing each chunk not already present.  The chunk
+     *  list is written to a temporary file, whose header is filled in
+     *  last, and renamed into place. */
+    static void put(String id, File source) throws IOException {
+        byte[] block = new byte[BLOCK];
+        byte[] chunk = new byte[MAX_CHUNK];
+        Main.tmpDir.mkdir();
+        Path tmp = Files.createTempFile(Main.tmpDir.toPath(), id, ".tmp");
+        try {
+            try (InputStream in = new FileInputStream(source);
+                 FileChannel listFile = FileChannel.open(
+                     tmp, StandardOpenOption.WRITE)) {
+                DataOutputStream list = new DataOutputStream(
+                    new BufferedOutputStream(
+                        Channels.newOutputStream(listFile)));
+                list.writeInt(MAGIC);
+                list.writeInt(VERSION);
+                list.writeLong(0);
+                list.writeInt(0);
+                int count = 0;
+                long total = 0;
+                int n = 0;
+                long hash = 0;
+                int len;
+                while ((len = in.read(block)) >= 0) {
+                    for (int i = 0; i < len; i += 1) {
+                        chunk[n] = block[i];
+                        n += 1;
+                        hash = (hash << 1) + GEAR[block[i] & 0xff];
+                        if (n >= MIN_CHUNK && (hash & MASK) == 0
+                            || n == MAX_CHUNK) {
+                            list.write(Utils.fromHex(store(chunk, n)));
+                            list.writeInt(n);
+                            count += 1;
+                            total += n;
+                            n = 0;
+                            hash = 0;
+                        }
+                    }
+                }
+                if (n > 0) {
+                    list.write(Utils.fromHex(store(chunk, n)));
+                    list.writeInt(n);
+                    count += 1;
+                    total += n;
+                }
+                list.flush();
+                listFile.write(ByteBuffer.allocate(12).putLong(total)
+                               .putInt(count).flip(), 8);
+            }
+            LISTS_DIR.mkdir();
+            File list = Utils.join(LISTS_DIR, id);
+            Files.move(tmp, list.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Journal.written(list);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Stores the first N bytes of CHUNK as a chunk, unless it is already
+     *  stored, and returns its id. */
+    private static String store(byte[] chunk, int n) throws IOException {
+        String id = Utils.sha1(chunk, n);
+        File file = Utils.join(CHUNKS_DIR, id);
+        if (!file.isFile()) {
+            CHUNKS_DIR.mkdir();
+            Path tmp = Files.createTempFile(Main.tmpDir.toPath(), id, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    out.write(chunk, 0, n);
+                }
+                Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Journal.written(file);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return id;
+    }
+
+    /** Returns the ids of the chunks of the chunked blob with ID, in
+     *  order. */
+    static List<String> chunks(String id) {
+        ByteBuffer list =
+            ByteBuffer.wrap(Utils.readContents(Utils.join(LISTS_DIR, id)));
+        Utils.checkHeader(list, MAGIC, VERSION, "chunk list");
+        list.getLong();
+        int count = list.getInt();
+        List<String> result = new ArrayList<>(count);
+        for (int k = 0; k < count; k += 1) {
+            result.add(Utils.readId(list));
+            list.getInt();
+        }
+        return result;
+    }
+
+    /** Returns the files of the chunks of the chunked blob with ID, in
+     *  order. */
+    static List<File> files(String id) {
+        List<File> result = new ArrayList<>();
+        for (String chunk : chunks(id)) {
+            File file = Utils.join(CHUNKS_DIR, chunk);
+            if (!file.isFile()) {
+                throw Utils.error("Missing chunk %s of blob %s.", chunk, id);
+            }
+            result.add(file);
+        }
+        return result;
+    }
+
+    /** Writes the contents of the chunked blob with ID to OUT, one chunk
+     *  at a time. */
+    static void writeTo(String id, OutputStream out) throws IOException {
+        for (File file : files(id)) {
+            Files.copy(file.toPath(), out);
+        }
+    }
+}
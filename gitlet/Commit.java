@@ -1,12 +1,33 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-
-public class Commit implements Serializable {
+import java.util.List;
+import java.util.Map;
+
+/** A commit.  Commits are stored in .gitlet/commits/[id] as
+ *      magic, version (ints), commit time in milliseconds (long),
+ *      tree id (20 bytes), number of parents (int), parent ids (20 bytes
+ *      each), message (int length, UTF-8 bytes)
+ *  and the id of a commit is the SHA-1 of that encoding.  The initial
+ *  commit has no stored parents; in memory its parent list holds the
+ *  empty string.  Commits written by the first release of gitlet, as
+ *  serialized objects, are converted by the migrate command (see
+ *  Legacy).
+ *  @author Felix Yu
+ */
+public class Commit {
+
+    /** First int of a commit file. */
+    private static final int MAGIC = 0x67434d54;
+    /** Version of the commit format. */
+    private static final int VERSION = 1;
 
     /** Unique ID of a commit from SHA-1 hash.*/
     private String sha_id;
@@ -14,13 +35,12 @@ public class Commit implements Serializable {
     private ArrayList<String> parents;
     /** Date when this commit was made. */
     private Date commitDate;
-    /** Mapping from file names to their SHA IDs*/
-    private HashMap<String, String> blobs;
+    /** SHA-1 id of the tree of the working directory at this commit. */
+    private String tree;
     /** The message of the commit. */
     private String message;
 
     public Commit() {
-        blobs = new HashMap<>();
         parents = new ArrayList<>();
     }
 
@@ -29,53 +49,118 @@ public class Commit implements Serializable {
         commitDate = new Date(0);
     }
 
-    /** Adds files in staging directory to be saved.
-     * Sets date of commit and clears staging directory.*/
-    public void actCommit() throws IOException {
-        String[] fileNames = Main.stagingDir.list();
+    /** Adds files in staging directory to be saved and sets the date of
+     *  commit.
+     *  @return a map from the paths of the staged files to their ids. */
+    public HashMap<String, String> actCommit() throws IOException {
+        List<String> fileNames = Utils.plainFilesUnder(Main.stagingDir);
         //set time
         this.commitDate = new Date(System.currentTimeMillis());
-        //read contents
-        for (String file : fileNames) {
-            byte[] stream = Utils.readContents(Utils.join(Main.stagingDir, file));
-            String fileID = Utils.sha1(stream);
-            blobs.put(file, fileID);
-            File target = Utils.join(Main.blobs, fileID);
-            File current = Utils.join(Main.stagingDir, file);
-            if (!target.exists()) {
-                Files.copy(current.toPath(), target.toPath());
-            }
+        //hash and store contents on the worker threads
+        List<String> fileIDs;
+        try (Stats.Phase phase = Stats.phase("store blobs")) {
+            fileIDs = Workers.map(fileNames.size(), k -> {
+                File staged = Utils.join(Main.stagingDir, fileNames.get(k));
+                try {
+                    String fileID = Utils.sha1(staged);
+                    BlobStore.put(fileID, staged);
+                    return fileID;
+                } catch (IllegalArgumentException | IOException excp) {
+                    if (staged.exists()) {
+                        throw excp;
+                    }
+                    /* Another process committed and unstaged it. */
+                    throw MetaStore.conflict();
+                }
+            });
         }
-    }
-
-    public boolean sameContent(File file1, File file2) {
-        String string1 = Utils.readContentsAsString(file1);
-        String string2 = Utils.readContentsAsString(file2);
-        if (Utils.sha1(string1).equals(Utils.sha1(string2))) {
-            return true;
+        HashMap<String, String> staged = new HashMap<>();
+        for (int i = 0; i < fileNames.size(); i += 1) {
+            staged.put(fileNames.get(i), fileIDs.get(i));
         }
-        return false;
+        return staged;
     }
 
     /** Clears the staging area after a commit.*/
     public void clearStage() {
-        String[] stagingFileNames = Main.stagingDir.list();
-        for (int i = 0; i < stagingFileNames.length; i++) {
-            File temp = Utils.join(Main.stagingDir, stagingFileNames[i]);
+        clearDir(Main.stagingDir);
+    }
+
+    /** Deletes the files and subdirectories of DIR. */
+    private static void clearDir(File dir) {
+        for (String name : dir.list()) {
+            File temp = Utils.join(dir, name);
+            if (temp.isDirectory()) {
+                clearDir(temp);
+            }
             temp.delete();
         }
     }
 
-    /** @return list of strings for hashing this commit. */
-    public String[] returnHashList() {
-        String[] returnList = new String[4];
-        returnList[0] = parents.get(0);
-        if (parents.size() > 1) {
-            returnList[1] = parents.get(1);
+    /** Returns the stored form of this commit. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(commitDate.getTime());
+            out.write(Utils.fromHex(tree));
+            int count = 0;
+            for (String parent : parents) {
+                count += parent.isEmpty() ? 0 : 1;
+            }
+            out.writeInt(count);
+            for (String parent : parents) {
+                if (!parent.isEmpty()) {
+                    out.write(Utils.fromHex(parent));
+                }
+            }
+            Utils.writeString(out, message);
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding commit.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the commit with ID whose stored form is CONTENTS. */
+    static Commit decode(String id, ByteBuffer contents) {
+        Utils.checkHeader(contents, MAGIC, VERSION, "commit " + id);
+        Commit result = new Commit();
+        result.sha_id = id;
+        result.commitDate = new Date(contents.getLong());
+        result.tree = Utils.readId(contents);
+        int count = contents.getInt();
+        if (count == 0) {
+            result.parents.add("");
+        }
+        for (int i = 0; i < count; i += 1) {
+            result.parents.add(Utils.readId(contents));
+        }
+        result.message = Utils.readString(contents);
+        return result;
+    }
+
+    /** Returns the commit with ID, read from .gitlet/commits. */
+    static Commit read(String id) {
+        File file = Utils.join(Main.commits, id);
+        if (!file.isFile()) {
+            throw Utils.error("Missing commit %s.", id);
         }
-        returnList[2] = commitDate.toString();
-        returnList[3] = message;
-        return returnList;
+        Stats.count(Stats.Counter.OBJECTS_READ, 1);
+        return decode(id, ByteBuffer.wrap(Utils.readContents(file)));
+    }
+
+    /** Stores this commit in .gitlet/commits, setting its id to the SHA-1
+     *  of its stored form, and returns the id. */
+    String write() {
+        byte[] contents = encode();
+        sha_id = Utils.sha1(contents);
+        File file = Utils.join(Main.commits, sha_id);
+        Utils.replaceContents(file, contents);
+        Journal.written(file);
+        return sha_id;
     }
 
     /** @return a string representation of this object. */
@@ -88,11 +173,6 @@ public class Commit implements Serializable {
         parents.add(parent);
     }
 
-    /** A setter method for this commit's ID. */
-    public void setSha_id(String id) {
-        sha_id = id;
-    }
-
     public String getSHA_ID() {
         return sha_id;
     }
@@ -105,8 +185,30 @@ public class Commit implements Serializable {
         return commitDate;
     }
 
-    public HashMap<String, String> getBlobs() {
-        return blobs;
+    /** Sets the time of this commit to DATE. */
+    void setCommitDate(Date date) {
+        commitDate = date;
+    }
+
+    /** Returns the id of this commit's tree. */
+    public String getTree() {
+        return tree;
+    }
+
+    /** Sets the tree of this commit to the tree with ID. */
+    public void setTree(String id) {
+        tree = id;
+    }
+
+    /** Returns a read-only map from the path of every file in this
+     *  commit to its blob id, backed by its tree (see Tree.files). */
+    public Map<String, String> getBlobs() {
+        return Tree.files(tree);
+    }
+
+    /** Returns an estimate of the bytes of memory this commit takes. */
+    long weight() {
+        return 200 + 2L * message.length() + 100L * parents.size();
     }
 
     public String getMessage() {
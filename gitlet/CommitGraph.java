@@ -0,0 +1,330 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/** The shape of the commit history, stored compactly so that history
+ *  walks and ancestry queries need not read any Commit objects.
+ *  .gitlet/commit-graph holds a header (magic, version) followed by one
+ *  fixed-size record per commit:
+ *      id (20 bytes), first parent, second parent (ints, -1 if none),
+ *      timestamp in milliseconds (long), generation (int)
+ *  A commit's position is the index of its record.  Records are only ever
+ *  appended, and a commit's parents always come before it, so positions
+ *  never change.  The generation of a commit with no parents is 1, and of
+ *  any other commit is one more than the largest generation of its
+ *  parents; hence a commit can only be an ancestor of commits with a
+ *  larger generation.
+ *  @author Felix Yu
+ */
+class CommitGraph {
+
+    /** The graph file. */
+    static final File GRAPH_FILE = Utils.join(Main.gitletDir, "commit-graph");
+
+    /** First int of the graph file. */
+    private static final int MAGIC = 0x67434752;
+    /** Version of the graph format. */
+    private static final int VERSION = 1;
+    /** Byte length of the header. */
+    private static final int HEADER = 8;
+    /** Byte length of a record. */
+    private static final int RECORD = IdTable.ID_BYTES + 4 + 4 + 8 + 4;
+    /** Offsets of the fields of a record. */
+    private static final int PARENT1 = IdTable.ID_BYTES, PARENT2 = PARENT1 + 4,
+        TIME = PARENT2 + 4, GENERATION = TIME + 8;
+
+    /** The records read from the file. */
+    private ByteBuffer records;
+    /** Number of records in the file. */
+    private int stored;
+    /** Records added by this command, not yet written. */
+    private final ByteArrayOutputStream added = new ByteArrayOutputStream();
+    /** The added records, as a buffer, or null if it must be remade. */
+    private ByteBuffer addedBuffer;
+
+    /** Opens the graph, building it from the commits read by LOADER from
+     *  .gitlet/commits if it does not exist yet. */
+    CommitGraph(Function<String, Commit> loader) {
+        if (!GRAPH_FILE.isFile()) {
+            build(loader);
+        }
+        open();
+    }
+
+    /** Maps the records of the graph file. */
+    private void open() {
+        try (RandomAccessFile in = new RandomAccessFile(GRAPH_FILE, "r")) {
+            records = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                          0, in.length());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read commit graph: %s",
+                              excp.getMessage());
+        }
+        if (records.getInt(0) != MAGIC || records.getInt(4) != VERSION) {
+            throw Utils.error("Bad commit graph.");
+        }
+        stored = (records.capacity() - HEADER) / RECORD;
+    }
+
+    /** Returns the number of commits in the graph. */
+    int size() {
+        return stored + added.size() / RECORD;
+    }
+
+    /** Returns the number of commits in the graph file, which come before
+     *  any added by this command. */
+    int saved() {
+        return stored;
+    }
+
+    /** Returns the full id of the commit at POS. */
+    String idAt(int pos) {
+        byte[] id = new byte[IdTable.ID_BYTES];
+        ByteBuffer buf = buffer(pos);
+        int start = offset(pos);
+        for (int i = 0; i < id.length; i += 1) {
+            id[i] = buf.get(start + i);
+        }
+        return Utils.toHex(id);
+    }
+
+    /** Returns the position of parent WHICH (0 or 1) of the commit at
+     *  POS, or -1 if it has no such parent. */
+    int parent(int pos, int which) {
+        return buffer(pos).getInt(offset(pos) + (which == 0 ? PARENT1
+                                                              : PARENT2));
+    }
+
+    /** Returns the commit time of the commit at POS in milliseconds. */
+    long time(int pos) {
+        return buffer(pos).getLong(offset(pos) + TIME);
+    }
+
+    /** Returns the generation of the commit at POS. */
+    int generation(int pos) {
+        return buffer(pos).getInt(offset(pos) + GENERATION);
+    }
+
+    /** Appends the commit with ID, made at TIME, whose parents are at
+     *  positions PARENT1 and PARENT2 (-1 if absent).  Returns its
+     *  position. */
+    int add(String id, int parent1, int parent2, long time) {
+        int generation = 1;
+        for (int p : new int[] { parent1, parent2 }) {
+            if (p >= 0) {
+                generation = Math.max(generation, generation(p) + 1);
+            }
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(added);
+            out.write(Utils.fromHex(id));
+            out.writeInt(parent1);
+            out.writeInt(parent2);
+            out.writeLong(time);
+            out.writeInt(generation);
+        } catch (IOException excp) {
+            throw Utils.error("Internal error writing commit graph.");
+        }
+        addedBuffer = null;
+        return size() - 1;
+    }
+
+    /** Appends the records added since the last save to the graph file,
+     *  and maps the file again so that they are read from it.  The caller
+     *  must hold the RefLock.  If other processes appended records since
+     *  the file was mapped, the added records move past theirs: returns
+     *  the number of positions they moved by.  A partial record left at
+     *  the end of the file by a crash is overwritten. */
+    int save() {
+        if (added.size() == 0) {
+            return 0;
+        }
+        int oldStored = stored;
+        open();
+        int shift = stored - oldStored;
+        ByteBuffer records = ByteBuffer.wrap(added.toByteArray());
+        for (int start = 0; start < records.capacity(); start += RECORD) {
+            for (int field : new int[] { start + PARENT1, start + PARENT2 }) {
+                if (records.getInt(field) >= oldStored) {
+                    records.putInt(field, records.getInt(field) + shift);
+                }
+            }
+        }
+        try (FileChannel out = FileChannel.open(GRAPH_FILE.toPath(),
+                                                StandardOpenOption.WRITE)) {
+            out.truncate(HEADER + (long) stored * RECORD);
+            out.position(out.size());
+            out.write(records);
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write commit graph: %s",
+                              excp.getMessage());
+        }
+        added.reset();
+        addedBuffer = null;
+        open();
+        return shift;
+    }
+
+    /** Returns true iff commits have been added since the last save. */
+    boolean changed() {
+        return added.size() > 0;
+    }
+
+    /** Returns true iff the commit at ANCESTOR is the commit at POS or one
+     *  of its ancestors.  Commits whose generation is not greater than
+     *  ANCESTOR's are not explored. */
+    boolean isAncestor(int ancestor, int pos) {
+        int limit = generation(ancestor);
+        BitSet seen = new BitSet();
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(pos);
+        while (!work.isEmpty()) {
+            int p = work.pop();
+            if (p == ancestor) {
+                return true;
+            }
+            if (seen.get(p) || generation(p) <= limit) {
+                continue;
+            }
+            seen.set(p);
+            for (int which = 0; which < 2; which += 1) {
+                int q = parent(p, which);
+                if (q >= 0) {
+                    work.push(q);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the position of a latest common ancestor of the commits at
+     *  A and B.  Commits are visited in order of decreasing generation,
+     *  marked with which of A and B they descend from; since every
+     *  descendant of a commit has a larger generation, a commit's marks
+     *  are complete when it is visited, and the first commit marked from
+     *  both sides is a common ancestor that is not an ancestor of any
+     *  other.  Only commits with generation at least that of the answer
+     *  are visited. */
+    int mergeBase(int a, int b) {
+        final int fromA = 1, fromB = 2;
+        HashMap<Integer, Integer> marks = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int c = Integer.compare(generation(y), generation(x));
+            return c != 0 ? c : Integer.compare(y, x);
+        });
+        marks.put(a, fromA);
+        marks.merge(b, fromB, (x, y) -> x | y);
+        queue.add(a);
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int p = queue.poll();
+            int mark = marks.get(p);
+            if (mark == (fromA | fromB)) {
+                return p;
+            }
+            for (int which = 0; which < 2; which += 1) {
+                int q = parent(p, which);
+                if (q >= 0) {
+                    int old = marks.getOrDefault(q, 0);
+                    if ((old | mark) != old) {
+                        marks.put(q, old | mark);
+                        queue.add(q);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the buffer holding the record of POS. */
+    private ByteBuffer buffer(int pos) {
+        if (pos < stored) {
+            return records;
+        }
+        if (addedBuffer == null) {
+            addedBuffer = ByteBuffer.wrap(added.toByteArray());
+        }
+        return addedBuffer;
+    }
+
+    /** Returns the offset of the record of POS in its buffer. */
+    private int offset(int pos) {
+        return pos < stored ? HEADER + pos * RECORD : (pos - stored) * RECORD;
+    }
+
+    /** Writes a graph of all commits in .gitlet/commits, read by LOADER,
+     *  with every commit after its parents. */
+    private static void build(Function<String, Commit> loader) {
+        List<String> order = new ArrayList<>();
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (String id : Utils.plainFilenamesIn(Main.commits)) {
+            ArrayDeque<String> work = new ArrayDeque<>();
+            work.push(id);
+            while (!work.isEmpty()) {
+                String top = work.peek();
+                if (positions.containsKey(top)) {
+                    work.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (String parent : loader.apply(top).getParent()) {
+                    if (!parent.isEmpty() && !positions.containsKey(parent)) {
+                        work.push(parent);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    work.pop();
+                    positions.put(top, order.size());
+                    order.add(top);
+                }
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int[] generations = new int[order.size()];
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int pos = 0; pos < order.size(); pos += 1) {
+                Commit commit = loader.apply(order.get(pos));
+                int[] parents = { -1, -1 };
+                int generation = 1;
+                List<String> parentIds = commit.getParent();
+                for (int i = 0; i < parentIds.size() && i < 2; i += 1) {
+                    if (!parentIds.get(i).isEmpty()) {
+                        parents[i] = positions.get(parentIds.get(i));
+                        generation = Math.max(generation,
+                                              generations[parents[i]] + 1);
+                    }
+                }
+                generations[pos] = generation;
+                out.write(Utils.fromHex(order.get(pos)));
+                out.writeInt(parents[0]);
+                out.writeInt(parents[1]);
+                out.writeLong(commit.getCommitDate().getTime());
+                out.writeInt(generation);
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error writing commit graph.");
+        }
+        Utils.replaceContents(GRAPH_FILE, bytes.toByteArray());
+        CommitIndex.SORTED_FILE.delete();
+        CommitIndex.RECENT_FILE.delete();
+    }
+}
@@ -0,0 +1,216 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** An on-disk index of all commit ids, used to resolve abbreviated ids
+ *  and to find the position of a commit in the CommitGraph.  It has two
+ *  parts: .gitlet/commit-index, a memory-mapped IdTable of ids in sorted
+ *  order, searched in O(log n), followed by their graph positions (ints),
+ *  and .gitlet/commit-index.new, the ids and positions of recent commits,
+ *  one per line, in the order they were made.  When the second part grows
+ *  past MAX_RECENT ids it is merged into the first, so adding a commit
+ *  does not rewrite the whole index.
+ *  @author Felix Yu
+ */
+class CommitIndex {
+
+    /** The sorted part of the index. */
+    static final File SORTED_FILE = Utils.join(Main.gitletDir, "commit-index");
+    /** The recent part of the index. */
+    static final File RECENT_FILE =
+        Utils.join(Main.gitletDir, "commit-index.new");
+
+    /** First int of the sorted file. */
+    private static final int MAGIC = 0x67434958;
+    /** Version of the sorted file format. */
+    private static final int VERSION = 2;
+    /** Maximum number of ids kept in the recent part. */
+    private static final int MAX_RECENT = 1024;
+
+    /** The mapped sorted file. */
+    private ByteBuffer buf;
+    /** The sorted ids. */
+    private IdTable sorted;
+    /** Recent ids, including those added by this command, mapped to
+     *  their graph positions. */
+    private final LinkedHashMap<String, Integer> recent =
+        new LinkedHashMap<>();
+    /** Ids added since the last save. */
+    private final List<String> added = new ArrayList<>();
+    /** True iff the recent part ends in a line cut short by a crash,
+     *  which the next line appended must not continue.  Such lines, and
+     *  any line that does not match the graph, are ignored. */
+    private boolean torn;
+
+    /** The graph whose positions this index holds. */
+    private final CommitGraph graph;
+
+    /** Opens the index, building it from GRAPH if it does not exist yet
+     *  or has an older format. */
+    CommitIndex(CommitGraph graph) {
+        this.graph = graph;
+        load();
+    }
+
+    /** Reads the index from its files, building it from the graph if it
+     *  does not exist yet or has an older format. */
+    private void load() {
+        recent.clear();
+        torn = false;
+        ByteBuffer contents = SORTED_FILE.isFile() ? map(SORTED_FILE) : null;
+        if (contents == null || contents.getInt(0) != MAGIC
+            || contents.getInt(4) != VERSION) {
+            LinkedHashMap<String, Integer> all = new LinkedHashMap<>();
+            for (int pos = 0; pos < graph.size(); pos += 1) {
+                all.put(graph.idAt(pos), pos);
+            }
+            writeSorted(all);
+            RECENT_FILE.delete();
+            contents = map(SORTED_FILE);
+        }
+        buf = contents;
+        sorted = new IdTable(buf, 8);
+        if (RECENT_FILE.isFile()) {
+            String lines = Utils.readContentsAsString(RECENT_FILE);
+            torn = !lines.isEmpty() && !lines.endsWith("\n");
+            for (String line : lines.split("\n")) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2 && fields[1].matches("[0-9]+")) {
+                    int pos = Integer.parseInt(fields[1]);
+                    if (pos < graph.size()
+                        && graph.idAt(pos).equals(fields[0])) {
+                        recent.put(fields[0], pos);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Records the commit with full ID at graph position POS. */
+    void add(String id, int pos) {
+        if (position(id) < 0) {
+            recent.put(id, pos);
+            added.add(id);
+        }
+    }
+
+    /** Returns the graph position of the commit with full ID, or -1 if
+     *  there is no such commit. */
+    int position(String id) {
+        int k = sorted.find(Utils.fromHex(id));
+        if (k >= 0) {
+            return buf.getInt(sorted.end() + k * 4);
+        }
+        Integer pos = recent.get(id);
+        return pos == null ? -1 : pos;
+    }
+
+    /** Returns the full ids of commits starting with PREFIX, a nonempty
+     *  string of hex digits, at most LIMIT of them. */
+    List<String> resolve(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        prefix = prefix.toLowerCase();
+        if (prefix.length() > 2 * IdTable.ID_BYTES) {
+            return result;
+        }
+        sorted.withPrefix(prefix, limit, result);
+        for (String id : recent.keySet()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (id.startsWith(prefix) && !result.contains(id)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Writes the ids added since the last save, whose graph positions
+     *  have moved by SHIFT since they were added (see CommitGraph.save).
+     *  The caller must hold the RefLock.  The index is first read again,
+     *  so that ids other processes added meanwhile are kept. */
+    void save(int shift) {
+        if (added.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<String, Integer> mine = new LinkedHashMap<>();
+        for (String id : added) {
+            mine.put(id, recent.get(id) + shift);
+        }
+        load();
+        added.clear();
+        for (Map.Entry<String, Integer> e : mine.entrySet()) {
+            if (position(e.getKey()) < 0) {
+                recent.put(e.getKey(), e.getValue());
+                added.add(e.getKey());
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        if (recent.size() > MAX_RECENT) {
+            LinkedHashMap<String, Integer> all = new LinkedHashMap<>();
+            for (int k = 0; k < sorted.size(); k += 1) {
+                all.put(sorted.idAt(k), buf.getInt(sorted.end() + k * 4));
+            }
+            all.putAll(recent);
+            writeSorted(all);
+            RECENT_FILE.delete();
+            buf = map(SORTED_FILE);
+            sorted = new IdTable(buf, 8);
+            recent.clear();
+        } else {
+            StringBuilder lines = new StringBuilder(torn ? "\n" : "");
+            torn = false;
+            for (String id : added) {
+                lines.append(id).append(' ').append(recent.get(id))
+                    .append('\n');
+            }
+            Utils.appendContents(RECENT_FILE, lines.toString());
+        }
+        added.clear();
+    }
+
+    /** Writes the ids and positions in POSITIONS to SORTED_FILE in sorted
+     *  order of id. */
+    private static void writeSorted(Map<String, Integer> positions) {
+        ArrayList<String> ids = new ArrayList<>(positions.keySet());
+        Collections.sort(ids);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            IdTable.write(out, ids);
+            for (String id : ids) {
+                out.writeInt(positions.get(id));
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error writing commit index.");
+        }
+        Utils.replaceContents(SORTED_FILE, bytes.toByteArray());
+    }
+
+    /** Returns the contents of FILE mapped into memory. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                       0, in.length());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read commit index: %s",
+                              excp.getMessage());
+        }
+    }
+}
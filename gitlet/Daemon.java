@@ -0,0 +1,195 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs many gitlet commands in one process, against one open
+ *  Repository, so that they share the JVM and everything the repository
+ *  has already read.  Changes are written back as a group: in batch mode
+ *  whenever no more input is waiting and at the end of the input, and in
+ *  server mode whenever no more requests are waiting.
+ *
+ *  A server listens on the Unix domain socket .gitlet/daemon.sock.  A
+ *  request is the words of one command, each followed by a NUL byte;
+ *  the server replies with the command's output and closes the
+ *  connection.  Before each command, the HEAD, refs and removals that
+ *  other processes changed since they were read are read again, and
+ *  changes resting on values that other processes changed meanwhile are
+ *  refused when written back (see MetaStore.flush).  Either mode may
+ *  watch the working directory with an FsMonitor, so that status and add
+ *  look only at the files that changed.
+ *  @author Felix Yu
+ */
+class Daemon {
+
+    /** The socket of a running server. */
+    static final File SOCKET_FILE = Utils.join(Main.gitletDir, "daemon.sock");
+
+    /** Held while a command runs or changes are written back. */
+    private static final Object LOCK = new Object();
+
+    /** Runs the commands on the lines of IN, one per line, with words
+     *  separated as by words.  Blank lines and lines starting with '#'
+     *  are skipped. */
+    static void batch(BufferedReader in) throws IOException {
+        watch();
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] args = words(line);
+            if (args.length > 0 && !args[0].startsWith("#")) {
+                execute(args);
+            }
+            if (!in.ready()) {
+                save();
+            }
+        }
+        save();
+    }
+
+    /** Serves requests on SOCKET_FILE until the process is killed, when
+     *  outstanding changes are written back and the socket is removed. */
+    static void serve() throws IOException {
+        Files.deleteIfExists(SOCKET_FILE.toPath());
+        ServerSocketChannel server =
+            ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+        watch();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            save();
+            SOCKET_FILE.delete();
+        }));
+        while (true) {
+            server.configureBlocking(false);
+            SocketChannel client = server.accept();
+            if (client == null) {
+                save();
+                server.configureBlocking(true);
+                client = server.accept();
+            }
+            try (SocketChannel c = client) {
+                handle(c);
+            } catch (IOException excp) {
+                System.err.println("Lost a client: " + excp.getMessage());
+            }
+        }
+    }
+
+    /** Reads one request from CLIENT, runs it and sends back its
+     *  output. */
+    private static void handle(SocketChannel client) throws IOException {
+        byte[] request = Channels.newInputStream(client).readAllBytes();
+        List<String> args = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < request.length; i += 1) {
+            if (request[i] == 0) {
+                args.add(new String(request, start, i - start,
+                                    StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        PrintStream stdout = System.out;
+        PrintStream reply = new PrintStream(Channels.newOutputStream(client),
+                                            false, StandardCharsets.UTF_8);
+        System.setOut(reply);
+        try {
+            if (args.isEmpty()) {
+                System.out.println("Please enter a command.");
+            } else {
+                execute(args.toArray(new String[0]));
+            }
+        } finally {
+            System.setOut(stdout);
+            reply.flush();
+        }
+    }
+
+    /** Starts an FsMonitor on the working directory if one is asked for
+     *  and it holds a repository. */
+    private static void watch() {
+        if (FsMonitor.enabled() && Main.gitletDir.isDirectory()) {
+            FsMonitor.start();
+        }
+    }
+
+    /** Runs the command ARGS, printing its error message if it fails.
+     *  An unexpected failure (any other exception) is reported as an
+     *  internal error, with its stack trace on the standard error, and
+     *  ends only this command, so that one bad request cannot stop a
+     *  server.  Changes to the working directory made before this are
+     *  first brought into the FsMonitor, if one runs. */
+    private static void execute(String... args) {
+        synchronized (LOCK) {
+            try {
+                FsMonitor monitor = FsMonitor.get();
+                if (monitor != null) {
+                    monitor.sync();
+                }
+                Main.run(args);
+            } catch (GitletException excp) {
+                System.out.println(excp.getMessage());
+            } catch (IOException | RuntimeException excp) {
+                System.out.println("Internal error: " + excp);
+                excp.printStackTrace();
+            }
+        }
+    }
+
+    /** Writes back the changes made since the last save. */
+    private static void save() {
+        synchronized (LOCK) {
+            Main.save();
+        }
+    }
+
+    /** Returns the words of LINE, which are separated by unquoted
+     *  whitespace.  Text in single quotes is taken as is; elsewhere, a
+     *  backslash makes the next character ordinary, and double quotes
+     *  group text that contains whitespace. */
+    static String[] words(String line) {
+        List<String> result = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (quote == '\'' && c != '\'') {
+                word.append(c);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                word = word == null ? new StringBuilder() : word;
+                i += 1;
+                word.append(line.charAt(i));
+            } else if (c == '\'' || c == '"') {
+                word = word == null ? new StringBuilder() : word;
+                if (quote == 0) {
+                    quote = c;
+                } else if (quote == c) {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (quote == 0 && Character.isWhitespace(c)) {
+                if (word != null) {
+                    result.add(word.toString());
+                    word = null;
+                }
+            } else {
+                word = word == null ? new StringBuilder() : word;
+                word.append(c);
+            }
+        }
+        if (word != null) {
+            result.add(word.toString());
+        }
+        return result.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+
+/** Copy/insert deltas between two versions of a blob.  A delta is a
+ *  sequence of operations, each either COPY (an offset and length in
+ *  the base) or INSERT (a length followed by that many literal bytes).
+ *  @author Felix Yu
+ */
+class Delta {
+
+    /** Operation codes. */
+    private static final int COPY = 0, INSERT = 1;
+
+    /** Size of the base blocks that are indexed when matching. */
+    private static final int BLOCK = 16;
+
+    /** Multiplier of the rolling block hash. */
+    private static final int MULT = 31;
+
+    /** MULT to the power BLOCK - 1, used to roll a byte out of the hash. */
+    private static final int MULT_OUT;
+
+    static {
+        int p = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            p *= MULT;
+        }
+        MULT_OUT = p;
+    }
+
+    /** Returns a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int literalStart = 0;
+            int i = 0;
+            int h = target.length >= BLOCK ? hash(target, 0) : 0;
+            while (i + BLOCK <= target.length) {
+                Integer start = blocks.get(h);
+                if (start != null && sameBlock(base, start, target, i)) {
+                    int len = BLOCK;
+                    while (start + len < base.length && i + len < target.length
+                           && base[start + len] == target[i + len]) {
+                        len += 1;
+                    }
+                    writeInsert(out, target, literalStart, i);
+                    out.writeByte(COPY);
+                    out.writeInt(start);
+                    out.writeInt(len);
+                    i += len;
+                    literalStart = i;
+                    if (i + BLOCK <= target.length) {
+                        h = hash(target, i);
+                    }
+                } else {
+                    if (i + BLOCK < target.length) {
+                        h = (h - target[i] * MULT_OUT) * MULT
+                            + target[i + BLOCK];
+                    }
+                    i += 1;
+                }
+            }
+            writeInsert(out, target, literalStart, target.length);
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error creating delta.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE.  TARGETLENGTH is the
+     *  length of the result. */
+    static byte[] apply(byte[] base, byte[] delta, int targetLength) {
+        byte[] result = new byte[targetLength];
+        int pos = 0;
+        try {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(delta));
+            while (in.available() > 0) {
+                int op = in.readByte();
+                if (op == COPY) {
+                    int start = in.readInt();
+                    int len = in.readInt();
+                    System.arraycopy(base, start, result, pos, len);
+                    pos += len;
+                } else {
+                    int len = in.readInt();
+                    in.readFully(result, pos, len);
+                    pos += len;
+                }
+            }
+        } catch (IOException | IndexOutOfBoundsException excp) {
+            throw Utils.error("Corrupt delta in pack.");
+        }
+        if (pos != targetLength) {
+            throw Utils.error("Corrupt delta in pack.");
+        }
+        return result;
+    }
+
+    /** Writes an INSERT of DATA[START .. END) to OUT, if it is nonempty. */
+    private static void writeInsert(DataOutputStream out, byte[] data,
+                                    int start, int end) throws IOException {
+        if (end > start) {
+            out.writeByte(INSERT);
+            out.writeInt(end - start);
+            out.write(data, start, end - start);
+        }
+    }
+
+    /** Returns the hash of the BLOCK bytes of DATA starting at START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            h = h * MULT + data[i];
+        }
+        return h;
+    }
+
+    /** Returns true iff the BLOCK bytes at A[I] and B[J] are equal. */
+    private static boolean sameBlock(byte[] a, int i, byte[] b, int j) {
+        for (int k = 0; k < BLOCK; k += 1) {
+            if (a[i + k] != b[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
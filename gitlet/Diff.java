@@ -0,0 +1,375 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Line-level differences between two files, printed as unified diffs.
+ *  Lines are interned as ints, so that the comparisons are between
+ *  ints; lines found in only one of the files are marked as changed
+ *  before the search, and the rest are compared by Myers' O(ND)
+ *  algorithm in its linear-space form: find the middle snake of an
+ *  optimal edit script by searching forwards and backwards at once, then
+ *  compare the parts before and after it.  Once a search passes
+ *  COST_LIMIT edits it settles for the furthest point reached, so that
+ *  very different files take time linear in their size rather than
+ *  quadratic.
+ *  @author Felix Yu
+ */
+class Diff {
+
+    /** Number of unchanged lines shown around each change. */
+    static final int CONTEXT = 3;
+
+    /** Number of edits after which a search settles for a good split
+     *  instead of an optimal one. */
+    private static final int COST_LIMIT = 4096;
+
+    /** Number of leading bytes checked for NULs to detect binary
+     *  files. */
+    private static final int BINARY_CHECK = 8000;
+
+    /** Lines of the two files, with their trailing newlines. */
+    private final List<String> linesA, linesB;
+    /** Interned lines of the parts of the files being compared. */
+    private final int[] a, b;
+    /** Indices in linesA and linesB of the lines in a and b. */
+    private final int[] indexA, indexB;
+    /** Lines of each file that are not in the other. */
+    private final boolean[] deleted, inserted;
+    /** Furthest x reached on each diagonal by the forward and backward
+     *  searches, indexed by diagonal plus b.length + 1. */
+    private final int[] forward, backward;
+
+    /** Compares files A and B. */
+    private Diff(byte[] a, byte[] b) {
+        linesA = lines(a);
+        linesB = lines(b);
+        deleted = new boolean[linesA.size()];
+        inserted = new boolean[linesB.size()];
+        HashMap<String, Integer> ids = new HashMap<>();
+        int[] idsA = intern(linesA, ids), idsB = intern(linesB, ids);
+        int[] countA = new int[ids.size()], countB = new int[ids.size()];
+        for (int id : idsA) {
+            countA[id] += 1;
+        }
+        for (int id : idsB) {
+            countB[id] += 1;
+        }
+        indexA = keep(idsA, countB, deleted);
+        indexB = keep(idsB, countA, inserted);
+        this.a = select(idsA, indexA);
+        this.b = select(idsB, indexB);
+        forward = new int[this.a.length + this.b.length + 3];
+        backward = new int[this.a.length + this.b.length + 3];
+        compare(0, this.a.length, 0, this.b.length);
+    }
+
+    /** Writes to OUT the unified diff between A and B, the old and new
+     *  contents of PATH, either of which is null if the file does not
+     *  exist on that side. */
+    static void print(String path, byte[] a, byte[] b, OutputStream out)
+        throws IOException {
+        String from = a == null ? "/dev/null" : "a/" + path;
+        String to = b == null ? "/dev/null" : "b/" + path;
+        StringBuilder text = new StringBuilder();
+        text.append("diff --git a/").append(path).append(" b/").append(path)
+            .append('\n');
+        if (isBinary(a) || isBinary(b)) {
+            text.append("Binary files ").append(from).append(" and ")
+                .append(to).append(" differ\n");
+        } else {
+            text.append("--- ").append(from).append('\n');
+            text.append("+++ ").append(to).append('\n');
+            new Diff(a == null ? new byte[0] : a,
+                     b == null ? new byte[0] : b).hunks(text);
+        }
+        out.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Appends the hunks of this diff to OUT. */
+    private void hunks(StringBuilder out) {
+        List<int[]> changes = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < deleted.length || j < inserted.length) {
+            if (i < deleted.length && deleted[i]
+                || j < inserted.length && inserted[j]) {
+                int i0 = i, j0 = j;
+                while (i < deleted.length && deleted[i]) {
+                    i += 1;
+                }
+                while (j < inserted.length && inserted[j]) {
+                    j += 1;
+                }
+                changes.add(new int[] { i0, i, j0, j });
+            } else {
+                i += 1;
+                j += 1;
+            }
+        }
+        for (int first = 0; first < changes.size();) {
+            int last = first;
+            while (last + 1 < changes.size()
+                   && changes.get(last + 1)[0] - changes.get(last)[1]
+                      <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int[] start = changes.get(first), end = changes.get(last);
+            int lead = Math.min(CONTEXT, start[0]);
+            int startA = start[0] - lead, startB = start[2] - lead;
+            int endA = Math.min(linesA.size(), end[1] + CONTEXT);
+            int endB = end[3] + (endA - end[1]);
+            out.append("@@ -").append(range(startA, endA - startA))
+                .append(" +").append(range(startB, endB - startB))
+                .append(" @@\n");
+            i = startA;
+            j = startB;
+            while (i < endA || j < endB) {
+                if (i < endA && deleted[i]) {
+                    line(out, '-', linesA.get(i));
+                    i += 1;
+                } else if (j < endB && inserted[j]) {
+                    line(out, '+', linesB.get(j));
+                    j += 1;
+                } else {
+                    line(out, ' ', linesA.get(i));
+                    i += 1;
+                    j += 1;
+                }
+            }
+            first = last + 1;
+        }
+    }
+
+    /** Returns the hunk header range of LENGTH lines from line START
+     *  (counting from 0). */
+    private static String range(int start, int length) {
+        if (length == 0) {
+            return start + ",0";
+        }
+        return length == 1 ? String.valueOf(start + 1)
+            : (start + 1) + "," + length;
+    }
+
+    /** Appends LINE to OUT marked with TAG. */
+    private static void line(StringBuilder out, char tag, String line) {
+        out.append(tag).append(line);
+        if (!line.endsWith("\n")) {
+            out.append("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /** Marks as deleted or inserted the lines of a[XOFF .. XLIM-1] and
+     *  b[YOFF .. YLIM-1] that an edit script between them changes. */
+    private void compare(int xoff, int xlim, int yoff, int ylim) {
+        while (xoff < xlim && yoff < ylim && a[xoff] == b[yoff]) {
+            xoff += 1;
+            yoff += 1;
+        }
+        while (xlim > xoff && ylim > yoff && a[xlim - 1] == b[ylim - 1]) {
+            xlim -= 1;
+            ylim -= 1;
+        }
+        if (xoff == xlim) {
+            for (int y = yoff; y < ylim; y += 1) {
+                inserted[indexB[y]] = true;
+            }
+        } else if (yoff == ylim) {
+            for (int x = xoff; x < xlim; x += 1) {
+                deleted[indexA[x]] = true;
+            }
+        } else {
+            int[] mid = split(xoff, xlim, yoff, ylim);
+            compare(xoff, mid[0], yoff, mid[1]);
+            compare(mid[0], xlim, mid[1], ylim);
+        }
+    }
+
+    /** Returns a point (x, y) on an optimal edit path between
+     *  a[XOFF .. XLIM-1] and b[YOFF .. YLIM-1], which must differ in their
+     *  first and in their last elements, other than the two ends: the end
+     *  of the middle snake or, after COST_LIMIT edits, the point closest
+     *  to an end reached by either search.  Diagonals are numbered x - y,
+     *  and only those that cross the box are searched. */
+    private int[] split(int xoff, int xlim, int yoff, int ylim) {
+        int off = b.length + 1;
+        int dmin = xoff - ylim, dmax = xlim - yoff;
+        int fmid = xoff - yoff, bmid = xlim - ylim;
+        int fmin = fmid, fmax = fmid, bmin = bmid, bmax = bmid;
+        boolean odd = ((fmid - bmid) & 1) != 0;
+        forward[off + fmid] = xoff;
+        backward[off + bmid] = xlim;
+        for (int cost = 1;; cost += 1) {
+            if (fmin > dmin) {
+                fmin -= 1;
+                forward[off + fmin - 1] = -1;
+            } else {
+                fmin += 1;
+            }
+            if (fmax < dmax) {
+                fmax += 1;
+                forward[off + fmax + 1] = -1;
+            } else {
+                fmax -= 1;
+            }
+            for (int d = fmax; d >= fmin; d -= 2) {
+                int lo = forward[off + d - 1], hi = forward[off + d + 1];
+                int x = lo < hi ? hi : lo + 1, y = x - d;
+                while (x < xlim && y < ylim && a[x] == b[y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[off + d] = x;
+                if (odd && bmin <= d && d <= bmax
+                    && backward[off + d] <= x) {
+                    return new int[] { x, y };
+                }
+            }
+            if (bmin > dmin) {
+                bmin -= 1;
+                backward[off + bmin - 1] = Integer.MAX_VALUE;
+            } else {
+                bmin += 1;
+            }
+            if (bmax < dmax) {
+                bmax += 1;
+                backward[off + bmax + 1] = Integer.MAX_VALUE;
+            } else {
+                bmax -= 1;
+            }
+            for (int d = bmax; d >= bmin; d -= 2) {
+                int lo = backward[off + d - 1], hi = backward[off + d + 1];
+                int x = lo < hi ? lo : hi - 1, y = x - d;
+                while (x > xoff && y > yoff && a[x - 1] == b[y - 1]) {
+                    x -= 1;
+                    y -= 1;
+                }
+                backward[off + d] = x;
+                if (!odd && fmin <= d && d <= fmax
+                    && x <= forward[off + d]) {
+                    return new int[] { x, y };
+                }
+            }
+            if (cost >= COST_LIMIT) {
+                return furthest(xoff, xlim, yoff, ylim, fmin, fmax,
+                                bmin, bmax);
+            }
+        }
+    }
+
+    /** Returns the point reached by the searches of split, on forward
+     *  diagonals FMIN .. FMAX and backward diagonals BMIN .. BMAX, that is
+     *  furthest from the end it started at, within the box from (XOFF,
+     *  YOFF) to (XLIM, YLIM). */
+    private int[] furthest(int xoff, int xlim, int yoff, int ylim,
+                           int fmin, int fmax, int bmin, int bmax) {
+        int off = b.length + 1;
+        int fbest = -1, fx = 0;
+        for (int d = fmax; d >= fmin; d -= 2) {
+            int x = Math.min(forward[off + d], xlim), y = x - d;
+            if (y > ylim) {
+                x = ylim + d;
+                y = ylim;
+            }
+            if (x + y > fbest) {
+                fbest = x + y;
+                fx = x;
+            }
+        }
+        int bbest = Integer.MAX_VALUE, bx = 0;
+        for (int d = bmax; d >= bmin; d -= 2) {
+            int x = Math.max(xoff, backward[off + d]), y = x - d;
+            if (y < yoff) {
+                x = yoff + d;
+                y = yoff;
+            }
+            if (x + y < bbest) {
+                bbest = x + y;
+                bx = x;
+            }
+        }
+        if (xlim + ylim - bbest < fbest - (xoff + yoff)) {
+            return new int[] { fx, fbest - fx };
+        }
+        return new int[] { bx, bbest - bx };
+    }
+
+    /** Returns the lines of CONTENTS, each with its newline, if any.  The
+     *  bytes are decoded as ISO-8859-1, so they are written back
+     *  unchanged. */
+    private static List<String> lines(byte[] contents) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < contents.length; i += 1) {
+            if (contents[i] == '\n') {
+                result.add(new String(contents, start, i + 1 - start,
+                                      StandardCharsets.ISO_8859_1));
+                start = i + 1;
+            }
+        }
+        if (start < contents.length) {
+            result.add(new String(contents, start, contents.length - start,
+                                  StandardCharsets.ISO_8859_1));
+        }
+        return result;
+    }
+
+    /** Returns the ids of LINES, giving each distinct line the next
+     *  unused id in IDS. */
+    private static int[] intern(List<String> lines,
+                                HashMap<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /** Returns the indices of the lines in IDS that occur in the other
+     *  file, whose counts of each id are OTHER, and marks the rest as
+     *  CHANGED. */
+    private static int[] keep(int[] ids, int[] other, boolean[] changed) {
+        int[] result = new int[ids.length];
+        int n = 0;
+        for (int i = 0; i < ids.length; i += 1) {
+            if (other[ids[i]] == 0) {
+                changed[i] = true;
+            } else {
+                result[n] = i;
+                n += 1;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Returns the elements of IDS at INDICES. */
+    private static int[] select(int[] ids, int[] indices) {
+        int[] result = new int[indices.length];
+        for (int i = 0; i < indices.length; i += 1) {
+            result[i] = ids[indices[i]];
+        }
+        return result;
+    }
+
+    /** Returns true iff CONTENTS looks like a binary file. */
+    private static boolean isBinary(byte[] contents) {
+        if (contents == null) {
+            return false;
+        }
+        for (int i = 0; i < Math.min(contents.length, BINARY_CHECK); i += 1) {
+            if (contents[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
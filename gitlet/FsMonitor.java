@@ -0,0 +1,352 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Watches the working directory with a WatchService, so that a
+ *  long-running gitlet process need not list the working directory or
+ *  stat every tracked file on each command.  A thread records the paths
+ *  the operating system reports as created, deleted or modified.  The
+ *  list of working files is kept up to date by looking only at those
+ *  paths, and a file that was checked (stat'ed or hashed) after its last
+ *  event is known not to have changed since, so the index may give its id
+ *  without looking at it.
+ *
+ *  Events arrive some time after the change, so each command first calls
+ *  sync, which creates a cookie file in .gitlet/tmp and waits until its
+ *  event (and so every earlier one) has been seen.  If it is not seen in
+ *  time, or the operating system drops events, or a directory cannot be
+ *  watched, nothing is known to be unchanged and the next listing scans
+ *  the whole working directory.  Directories named .gitlet are not
+ *  watched.  A monitor is started by batch and server modes when the
+ *  system property gitlet.fsmonitor or the environment variable
+ *  GITLET_FSMONITOR is "true".
+ *  @author Felix Yu
+ */
+class FsMonitor {
+
+    /** Longest time sync waits for its cookie, in milliseconds. */
+    private static final long SYNC_TIMEOUT = 2000;
+
+    /** Prefix of the names of cookie files. */
+    private static final String COOKIE = "fsmonitor-cookie-";
+
+    /** The running monitor, or null. */
+    private static FsMonitor current;
+
+    /** Returns true iff a monitor is asked for. */
+    static boolean enabled() {
+        return "true".equalsIgnoreCase(
+            System.getProperty("gitlet.fsmonitor",
+                               System.getenv("GITLET_FSMONITOR")));
+    }
+
+    /** Starts watching the working directory, unless already watching.
+     *  If the file system cannot be watched, no monitor runs. */
+    static synchronized void start() {
+        if (current != null) {
+            return;
+        }
+        try {
+            current = new FsMonitor();
+        } catch (IOException | UnsupportedOperationException excp) {
+            System.err.printf("Cannot watch the working directory: %s%n",
+                              excp.getMessage());
+        }
+    }
+
+    /** Returns the running monitor, or null if there is none. */
+    static synchronized FsMonitor get() {
+        return current;
+    }
+
+    /** Starts watching the working directory on a new thread. */
+    private FsMonitor() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        Main.tmpDir.mkdirs();
+        cookieKey = Main.tmpDir.toPath().register(
+            watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        watchTree("");
+        Thread thread = new Thread(this::watch, "fsmonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Waits until every change made to the working directory before
+     *  the call has been seen.  If that takes too long, forgets what it
+     *  knows, so that the next listing scans the working directory and no
+     *  file is taken to be unchanged. */
+    void sync() {
+        try (Stats.Phase phase = Stats.phase("fsmonitor sync")) {
+            String name;
+            synchronized (this) {
+                cookies += 1;
+                name = COOKIE + cookies;
+            }
+            File cookie = Utils.join(Main.tmpDir, name);
+            try {
+                Main.tmpDir.mkdirs();
+                cookie.createNewFile();
+            } catch (IOException excp) {
+                lost();
+                return;
+            }
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            synchronized (this) {
+                while (!seen.remove(name)) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        lostLocked();
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException excp) {
+                        Thread.currentThread().interrupt();
+                        lostLocked();
+                        break;
+                    }
+                }
+            }
+            cookie.delete();
+        }
+    }
+
+    /** Returns the paths of the plain files in the working directory,
+     *  sorted, relative to it and with '/' as separator.  Only the paths
+     *  with events since the last call are looked at, unless events were
+     *  lost.  The set is valid until the next call. */
+    synchronized SortedSet<String> files() {
+        if (files == null) {
+            files = new TreeSet<>(Utils.plainFilesUnder(Main.CWD));
+            changed.clear();
+        }
+        for (String path : changed) {
+            files.remove(path);
+            files.subSet(path + "/", path + "0").clear();
+            File file = new File(path);
+            if (file.isFile()) {
+                files.add(path);
+            } else if (file.isDirectory()) {
+                for (String sub : Utils.plainFilesUnder(file)) {
+                    files.add(path + "/" + sub);
+                }
+            }
+        }
+        changed.clear();
+        return Collections.unmodifiableSortedSet(files);
+    }
+
+    /** Returns a mark to pass to checked once a path has been looked
+     *  at, or to release if it could not be. */
+    synchronized long mark() {
+        marks.merge(tick, 1, Integer::sum);
+        return tick;
+    }
+
+    /** Records that PATH (relative to the working directory, with '/' as
+     *  separator) was looked at after MARK was returned, so that it has
+     *  not changed unless an event for it or a directory containing it,
+     *  or a loss of events, came after MARK.  Releases MARK. */
+    synchronized void checked(String path, long mark) {
+        if (lostAt <= mark && lastEvent(path) <= mark && watched(path)) {
+            clean.add(path);
+        }
+        release(mark);
+    }
+
+    /** Gives back MARK, returned by mark, when its path was not looked
+     *  at after all. */
+    synchronized void release(long mark) {
+        marks.computeIfPresent(mark, (m, n) -> n == 1 ? null : n - 1);
+        prune();
+    }
+
+    /** Returns true iff PATH is in the watched part of the working
+     *  directory. */
+    private static boolean watched(String path) {
+        for (String part : path.split("/")) {
+            if (part.equals(".gitlet") || part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Drops the events that no outstanding mark comes before, which
+     *  checked can no longer ask about: a mark made later is at least
+     *  their tick.  Events are kept in the order of their ticks, so only
+     *  the oldest are looked at. */
+    private void prune() {
+        long oldest = marks.isEmpty() ? tick : marks.firstKey();
+        Iterator<Long> ticks = events.values().iterator();
+        while (ticks.hasNext() && ticks.next() <= oldest) {
+            ticks.remove();
+        }
+    }
+
+    /** Returns true iff PATH has not changed since it was last
+     *  checked. */
+    synchronized boolean unchanged(String path) {
+        return clean.contains(path);
+    }
+
+    /** Returns the tick of the last event for PATH or a directory
+     *  containing it, or -1 if there was none. */
+    private long lastEvent(String path) {
+        long result = events.getOrDefault(path, -1L);
+        for (int slash = path.indexOf('/'); slash >= 0;
+             slash = path.indexOf('/', slash + 1)) {
+            result = Math.max(result,
+                              events.getOrDefault(path.substring(0, slash),
+                                                  -1L));
+        }
+        return result;
+    }
+
+    /** Handles the events of the watched directories until the process
+     *  ends. */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException excp) {
+                return;
+            }
+            for (; key != null; key = watcher.poll()) {
+                handle(key);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /** Records the events of KEY and makes it ready for more. */
+    private void handle(WatchKey key) {
+        String dir;
+        synchronized (this) {
+            dir = dirs.get(key);
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lost();
+                continue;
+            }
+            String name = event.context().toString();
+            if (key == cookieKey) {
+                if (name.startsWith(COOKIE)) {
+                    synchronized (this) {
+                        seen.add(name);
+                    }
+                }
+            } else if (dir != null && !name.equals(".gitlet")) {
+                String path = dir.isEmpty() ? name : dir + "/" + name;
+                changed(path);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && new File(path).isDirectory()) {
+                    watchTree(path);
+                }
+            }
+        }
+        if (!key.reset()) {
+            synchronized (this) {
+                dirs.remove(key);
+            }
+        }
+    }
+
+    /** Records an event for PATH. */
+    private synchronized void changed(String path) {
+        tick += 1;
+        events.remove(path);
+        events.put(path, tick);
+        changed.add(path);
+        clean.remove(path);
+        clean.subSet(path + "/", path + "0").clear();
+    }
+
+    /** Watches the directory PATH ("" for the working directory) and the
+     *  directories under it, other than .gitlet.  If one cannot be
+     *  watched, changes may be missed, so forgets what it knows. */
+    private void watchTree(String path) {
+        File dir = path.isEmpty() ? Main.CWD : new File(path);
+        try {
+            WatchKey key = dir.toPath().register(
+                watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            synchronized (this) {
+                dirs.put(key, path);
+            }
+        } catch (IOException excp) {
+            lost();
+            return;
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String sub = path.isEmpty() ? name : path + "/" + name;
+            if (!name.equals(".gitlet") && new File(sub).isDirectory()) {
+                watchTree(sub);
+            }
+        }
+    }
+
+    /** Forgets what is known, after events may have been missed. */
+    private synchronized void lost() {
+        lostLocked();
+    }
+
+    /** As lost, with this monitor's lock held. */
+    private void lostLocked() {
+        files = null;
+        clean.clear();
+        events.clear();
+        tick += 1;
+        lostAt = tick;
+    }
+
+    /** The watch service. */
+    private final WatchService watcher;
+    /** The key of .gitlet/tmp, where cookies are made. */
+    private final WatchKey cookieKey;
+    /** The path of each watched directory, by key. */
+    private final HashMap<WatchKey, String> dirs = new HashMap<>();
+    /** Names of the cookies seen and not yet waited for. */
+    private final HashSet<String> seen = new HashSet<>();
+    /** Number of cookies made. */
+    private long cookies;
+    /** Number of events seen and losses of events. */
+    private long tick;
+    /** The tick of the last loss of events. */
+    private long lostAt;
+    /** The tick of the last event of each path with one that an
+     *  outstanding mark comes before, oldest first. */
+    private final LinkedHashMap<String, Long> events = new LinkedHashMap<>();
+    /** The number of outstanding marks with each tick. */
+    private final TreeMap<Long, Integer> marks = new TreeMap<>();
+    /** Paths with events since files was last called. */
+    private final TreeSet<String> changed = new TreeSet<>();
+    /** The working files as of the last call of files, or null if they
+     *  must be listed again. */
+    private TreeSet<String> files;
+    /** Paths checked since their last event. */
+    private final TreeSet<String> clean = new TreeSet<>();
+}
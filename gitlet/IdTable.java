@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** A sorted table of binary SHA-1 ids preceded by a 256-entry fan-out,
+ *  read in place from a (usually memory-mapped) buffer.  The layout is
+ *      fan-out (256 ints), N ids (20 bytes each, ascending)
+ *  where fan-out entry B is the number of ids whose first byte is <= B,
+ *  so a search only has to look within one fan-out bucket.
+ *  @author Felix Yu
+ */
+class IdTable {
+
+    /** Byte length of a binary SHA-1 id. */
+    static final int ID_BYTES = 20;
+
+    /** Byte length of the fan-out. */
+    static final int FANOUT_BYTES = 256 * 4;
+
+    /** The buffer holding the table. */
+    private final ByteBuffer buf;
+    /** Position of the fan-out in buf. */
+    private final int base;
+    /** Number of ids. */
+    private final int size;
+
+    /** A table starting at position BASE of BUF. */
+    IdTable(ByteBuffer buf, int base) {
+        this.buf = buf;
+        this.base = base;
+        this.size = buf.getInt(base + FANOUT_BYTES - 4);
+    }
+
+    /** Returns the number of ids. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the position in buf just past the table. */
+    int end() {
+        return base + FANOUT_BYTES + size * ID_BYTES;
+    }
+
+    /** Returns the hex form of the Kth id. */
+    String idAt(int k) {
+        byte[] id = new byte[ID_BYTES];
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            id[i] = buf.get(base + FANOUT_BYTES + k * ID_BYTES + i);
+        }
+        return Utils.toHex(id);
+    }
+
+    /** Returns the position of ID (binary), or -1 if it is absent. */
+    int find(byte[] id) {
+        int k = lowerBound(id);
+        return k < size && compareAt(k, id) == 0 ? k : -1;
+    }
+
+    /** Returns the position of the first id that is >= ID (binary), or
+     *  size() if there is none. */
+    int lowerBound(byte[] id) {
+        int b = id[0] & 0xff;
+        int lo = b == 0 ? 0 : fanout(b - 1);
+        int hi = fanout(b);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the full hex ids in this table that start with the hex
+     *  PREFIX, stopping after LIMIT of them. */
+    List<String> withPrefix(String prefix, int limit, List<String> out) {
+        StringBuilder low = new StringBuilder(prefix);
+        while (low.length() < 2 * ID_BYTES) {
+            low.append('0');
+        }
+        for (int k = lowerBound(Utils.fromHex(low.toString()));
+             k < size && out.size() < limit; k += 1) {
+            String id = idAt(k);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            out.add(id);
+        }
+        return out;
+    }
+
+    /** Returns fan-out entry B. */
+    private int fanout(int b) {
+        return buf.getInt(base + b * 4);
+    }
+
+    /** Returns the result of comparing the Kth id with ID. */
+    private int compareAt(int k, byte[] id) {
+        int start = base + FANOUT_BYTES + k * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            int c = (buf.get(start + i) & 0xff) - (id[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Writes a table of the hex ids SORTEDIDS, which must be in
+     *  ascending order, to OUT. */
+    static void write(DataOutputStream out, List<String> sortedIds)
+        throws IOException {
+        int[] counts = new int[256];
+        for (String id : sortedIds) {
+            counts[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < 256; b += 1) {
+            total += counts[b];
+            out.writeInt(total);
+        }
+        for (String id : sortedIds) {
+            out.write(Utils.fromHex(id));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** A persistent cache of the SHA-1 ids of files in the working directory
+ *  and staging area, keyed by path and validated by the file's size,
+ *  modification time and inode.  A file whose stat data is unchanged
+ *  since it was last hashed is not read again.  The index file holds
+ *      magic, version (ints), number of entries (int), then for each
+ *      entry its path (int length, UTF-8 bytes), size, mtime and inode
+ *      (longs) and id (20 bytes)
+ *  @author Felix Yu
+ */
+class Index {
+
+    /** The file holding the index. */
+    static final File INDEX_FILE = Utils.join(Main.gitletDir, "index");
+
+    /** First int of the index file. */
+    private static final int MAGIC = 0x67494458;
+    /** Version of the index format. */
+    private static final int VERSION = 1;
+
+    /** Stat data and id of one file. */
+    private static class Entry {
+        /** Size of the file in bytes. */
+        private long size;
+        /** Modification time of the file in nanoseconds. */
+        private long mtime;
+        /** Inode number of the file, or 0 if unknown. */
+        private long inode;
+        /** SHA-1 id of the file's contents. */
+        private String id;
+    }
+
+    /** Entries keyed by file path.  Concurrent, so that files may be
+     *  hashed on several worker threads. */
+    private final ConcurrentHashMap<String, Entry> entries =
+        new ConcurrentHashMap<>();
+
+    /** Modification time of INDEX_FILE when it was read, in nanoseconds.
+     *  Entries whose mtime is not before this may have been changed in
+     *  the same clock tick as they were hashed, so they are rehashed. */
+    private long indexTime;
+
+    /** True iff the index must be written back. */
+    private volatile boolean dirty;
+
+    /** Returns the index of this repository, or an empty index if there
+     *  is none yet. */
+    static Index load() {
+        if (!INDEX_FILE.isFile()) {
+            return new Index();
+        }
+        Index result = new Index();
+        try {
+            ByteBuffer contents =
+                ByteBuffer.wrap(Utils.readContents(INDEX_FILE));
+            Utils.checkHeader(contents, MAGIC, VERSION, "index");
+            for (int n = contents.getInt(); n > 0; n -= 1) {
+                String key = Utils.readString(contents);
+                Entry e = new Entry();
+                e.size = contents.getLong();
+                e.mtime = contents.getLong();
+                e.inode = contents.getLong();
+                e.id = Utils.readId(contents);
+                result.entries.put(key, e);
+            }
+        } catch (RuntimeException excp) {
+            /* An unreadable cache, or one in an old format, is simply
+             * rebuilt. */
+            return new Index();
+        }
+        result.indexTime = modificationTime();
+        return result;
+    }
+
+    /** Writes this index back if any entry changed. */
+    void save() {
+        if (dirty) {
+            Utils.replaceContents(INDEX_FILE, encode());
+            dirty = false;
+            indexTime = modificationTime();
+        }
+    }
+
+    /** Returns the modification time of INDEX_FILE in nanoseconds, or 0
+     *  if it cannot be read, so that every file is rehashed. */
+    private static long modificationTime() {
+        try {
+            return Files.getLastModifiedTime(INDEX_FILE.toPath())
+                .to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            return 0;
+        }
+    }
+
+    /** Returns the stored form of this index. */
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (String key : entries.keySet()) {
+                Entry e = entries.get(key);
+                Utils.writeString(out, key);
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeLong(e.inode);
+                out.write(Utils.fromHex(e.id));
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding index.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the SHA-1 id of the contents of FILE, which must exist,
+     *  hashing it only if its stat data differs from the cached entry.
+     *  If an FsMonitor runs and FILE has not changed since it was last
+     *  looked at, it is not even stat'ed. */
+    String hash(File file) {
+        Path path = file.toPath();
+        String key = path.normalize().toString();
+        String watched = key.replace(File.separatorChar, '/');
+        FsMonitor monitor = FsMonitor.get();
+        Entry cached = entries.get(key);
+        if (cached != null && monitor != null
+            && monitor.unchanged(watched)) {
+            Stats.count(Stats.Counter.MONITOR_HITS, 1);
+            return cached.id;
+        }
+        long mark = monitor == null ? 0 : monitor.mark();
+        boolean looked = false;
+        try {
+            Entry current = new Entry();
+            try {
+                BasicFileAttributes attrs =
+                    Files.readAttributes(path, BasicFileAttributes.class);
+                current.size = attrs.size();
+                current.mtime =
+                    attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                current.inode = inode(path);
+            } catch (IOException excp) {
+                throw Utils.error("Cannot stat %s.", file.getPath());
+            }
+            if (cached != null && cached.size == current.size
+                && cached.mtime == current.mtime
+                && cached.inode == current.inode
+                && cached.mtime < indexTime) {
+                Stats.count(Stats.Counter.INDEX_HITS, 1);
+            } else {
+                current.id = Utils.sha1(file);
+                entries.put(key, current);
+                dirty = true;
+                cached = current;
+            }
+            looked = true;
+        } finally {
+            if (monitor != null) {
+                if (looked) {
+                    monitor.checked(watched, mark);
+                } else {
+                    monitor.release(mark);
+                }
+            }
+        }
+        return cached.id;
+    }
+
+    /** Removes the entry for FILE, if any. */
+    void forget(File file) {
+        if (entries.remove(file.toPath().normalize().toString()) != null) {
+            dirty = true;
+        }
+    }
+
+    /** Returns the inode number of PATH, or 0 if the file system does not
+     *  report one. */
+    private static long inode(Path path) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(path, "unix:ino")).longValue();
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/** A write-ahead journal for the small files under .gitlet that commands
+ *  overwrite (HEAD, refs and removals).  The changes a command makes to
+ *  them are appended to .gitlet/journal as one record, which is forced
+ *  to disk, and only then applied, each file by an atomic rename.  A
+ *  record is
+ *      magic (int), body length (int), body, CRC-32 of body (long)
+ *  where the body is the number of changes (int) followed, for each
+ *  change, by the path (int length, UTF-8 bytes), 1 to write the file or
+ *  0 to delete it (byte), and the new contents (int length, bytes).
+ *
+ *  Opening a repository calls recover, which brings every file named in
+ *  the complete records of the journal up to date with its last record,
+ *  and drops a record torn by a crash.  Applied files are not synced one
+ *  by one; instead, once the journal passes CHECKPOINT bytes, the files
+ *  it names are synced together and the journal is emptied.
+ *
+ *  The objects that refs lead to are not journaled, since they are
+ *  never overwritten, but they must be on disk before a ref names them.
+ *  Code that stores one passes its file to written, and commit forces
+ *  all such files, and their directories, before it appends a record.
+ *  @author Felix Yu
+ */
+class Journal {
+
+    /** The journal file. */
+    static final File JOURNAL_FILE = Utils.join(Main.gitletDir, "journal");
+
+    /** First int of a record. */
+    private static final int MAGIC = 0x674a524e;
+    /** Size in bytes past which the journal is checkpointed. */
+    private static final int CHECKPOINT = 64 * 1024;
+
+    /** Objects stored by this process and not yet forced to disk. */
+    private static final LinkedHashSet<File> UNSYNCED = new LinkedHashSet<>();
+
+    /** Changes not yet committed: new contents of files, or null for
+     *  files to delete. */
+    private final LinkedHashMap<File, byte[]> changes = new LinkedHashMap<>();
+
+    /** Records that FILE is to hold CONTENTS. */
+    void write(File file, String contents) {
+        changes.put(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Records that FILE is to be deleted. */
+    void delete(File file) {
+        changes.put(file, null);
+    }
+
+    /** Appends the recorded changes to the journal as one record, forces
+     *  it to disk and applies them.  The objects this process has stored
+     *  are forced to disk first (see written), so that no ref the record
+     *  publishes can outlive a crash that loses what it names. */
+    void commit() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        syncWritten();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeInt(changes.size());
+            for (Map.Entry<File, byte[]> change : changes.entrySet()) {
+                Utils.writeString(out, change.getKey().getPath());
+                byte[] contents = change.getValue();
+                out.writeByte(contents == null ? 0 : 1);
+                out.writeInt(contents == null ? 0 : contents.length);
+                out.write(contents == null ? new byte[0] : contents);
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error writing journal.");
+        }
+        byte[] record = record(body.toByteArray());
+        long size;
+        try (FileChannel journal = FileChannel.open(
+                 JOURNAL_FILE.toPath(), StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            journal.write(ByteBuffer.wrap(record));
+            journal.force(false);
+            size = journal.size();
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write journal: %s", excp.getMessage());
+        }
+        for (Map.Entry<File, byte[]> change : changes.entrySet()) {
+            apply(change.getKey(), change.getValue());
+        }
+        changes.clear();
+        if (size > CHECKPOINT) {
+            checkpoint(replay(false));
+        }
+    }
+
+    /** Notes that FILE, a newly stored blob, chunk, tree or commit, must
+     *  be forced to disk before the next record is appended, since that
+     *  record may publish a ref that leads to it. */
+    static void written(File file) {
+        synchronized (UNSYNCED) {
+            UNSYNCED.add(file);
+        }
+    }
+
+    /** Forces the files passed to written since the last call, the
+     *  directories holding them and .gitlet, which holds those
+     *  directories, to disk.  The files are forced on the worker
+     *  threads, as storage devices can sync several files at once. */
+    private static void syncWritten() {
+        List<File> files;
+        synchronized (UNSYNCED) {
+            files = new ArrayList<>(UNSYNCED);
+            UNSYNCED.clear();
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        LinkedHashSet<File> dirs = new LinkedHashSet<>();
+        for (File file : files) {
+            dirs.add(file.getAbsoluteFile().getParentFile());
+        }
+        dirs.add(Main.gitletDir.getAbsoluteFile());
+        try (Stats.Phase phase = Stats.phase("sync objects")) {
+            Workers.map(files.size(), k -> {
+                try {
+                    Utils.force(files.get(k));
+                } catch (NoSuchFileException excp) {
+                    /* Since removed, as gc removes packed blobs. */
+                }
+                return null;
+            });
+            for (File dir : dirs) {
+                Utils.force(dir);
+            }
+        } catch (IOException excp) {
+            synchronized (UNSYNCED) {
+                UNSYNCED.addAll(files);
+            }
+            throw Utils.error("Cannot sync repository: %s", excp.getMessage());
+        }
+    }
+
+    /** Completes the changes of the journal that a command may have left
+     *  unapplied, and drops any torn record at its end. */
+    static void recover() {
+        if (JOURNAL_FILE.isFile()) {
+            replay(true);
+        }
+    }
+
+    /** Reads the complete records of the journal, truncating it after the
+     *  last of them, and returns the last contents each names for each
+     *  file.  If APPLY, also makes each file hold those contents. */
+    private static LinkedHashMap<File, byte[]> replay(boolean apply) {
+        LinkedHashMap<File, byte[]> latest = new LinkedHashMap<>();
+        ByteBuffer journal = ByteBuffer.wrap(Utils.readContents(JOURNAL_FILE));
+        int end = 0;
+        try {
+            while (journal.remaining() >= 8 && journal.getInt() == MAGIC) {
+                int length = journal.getInt();
+                if (length < 0 || length > journal.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                journal.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (journal.getLong() != crc.getValue()) {
+                    break;
+                }
+                ByteBuffer changes = ByteBuffer.wrap(body);
+                for (int n = changes.getInt(); n > 0; n -= 1) {
+                    File file = new File(Utils.readString(changes));
+                    boolean write = changes.get() == 1;
+                    byte[] contents = new byte[changes.getInt()];
+                    changes.get(contents);
+                    latest.remove(file);
+                    latest.put(file, write ? contents : null);
+                }
+                end = journal.position();
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException excp) {
+            /* A record torn by a crash: it and anything after it were
+             * never applied. */
+        }
+        if (end < journal.capacity()) {
+            try (FileChannel out = FileChannel.open(JOURNAL_FILE.toPath(),
+                                                    StandardOpenOption.WRITE)) {
+                out.truncate(end);
+                out.force(false);
+            } catch (IOException excp) {
+                throw Utils.error("Cannot repair journal: %s",
+                                  excp.getMessage());
+            }
+        }
+        if (apply) {
+            for (Map.Entry<File, byte[]> change : latest.entrySet()) {
+                File file = change.getKey();
+                byte[] contents = change.getValue();
+                if (contents == null ? file.exists()
+                    : !file.isFile()
+                      || !Arrays.equals(contents, Utils.readContents(file))) {
+                    apply(file, contents);
+                }
+            }
+        }
+        return latest;
+    }
+
+    /** Forces the files in CHANGES, and the directories holding them, to
+     *  disk, then empties the journal. */
+    private static void checkpoint(Map<File, byte[]> changes) {
+        try {
+            for (File file : changes.keySet()) {
+                if (file.exists()) {
+                    Utils.force(file);
+                }
+                Utils.force(file.getAbsoluteFile().getParentFile());
+            }
+            JOURNAL_FILE.delete();
+            Utils.force(Main.gitletDir.getAbsoluteFile());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot sync repository: %s", excp.getMessage());
+        }
+    }
+
+    /** Makes FILE hold CONTENTS, or deletes it if CONTENTS is null. */
+    private static void apply(File file, byte[] contents) {
+        if (contents == null) {
+            file.delete();
+        } else {
+            Utils.replaceContents(file, contents);
+        }
+    }
+
+    /** Returns the journal record whose body is BODY. */
+    private static byte[] record(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return ByteBuffer.allocate(body.length + 16).putInt(MAGIC)
+            .putInt(body.length).put(body).putLong(crc.getValue()).array();
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Reads the repositories written by the first release of gitlet, for
+ *  the migrate command.  That release kept its branches, head and
+ *  removals in one serialized gitlet.Repository in .gitlet/repo, and each
+ *  commit as a serialized gitlet.Commit in .gitlet/commits/[id], listing
+ *  its files in a map of blob ids rather than a tree.  Both classes have
+ *  changed since, so their objects are read into the stand-ins below,
+ *  which have the same fields: the stream that reads them replaces the
+ *  old class descriptors by those of the stand-ins, after checking that
+ *  they carry the serialization ids of the released classes.  Blobs and
+ *  the staging area kept the layout they still have.
+ *  @author Felix Yu
+ */
+class Legacy {
+
+    /** The file holding the serialized repository. */
+    static final File REPO_FILE = Utils.join(Main.gitletDir, "repo");
+
+    /** Serialization id of the released gitlet.Repository. */
+    private static final long REPOSITORY_UID = 3929212783732525616L;
+    /** Serialization id of the released gitlet.Commit. */
+    private static final long COMMIT_UID = -7785411909107643852L;
+
+    /** The fields of the released gitlet.Repository. */
+    static class OldRepository implements Serializable {
+        /** Serialization id, as in the release. */
+        private static final long serialVersionUID = REPOSITORY_UID;
+
+        /** Commits by id. */
+        private HashMap<String, OldCommit> commits;
+        /** The id of the current commit. */
+        private String head;
+        /** Commit ids by branch name. */
+        private HashMap<String, String> branches;
+        /** The name of the current branch. */
+        private String currentBranch;
+        /** Names of files staged for removal. */
+        private ArrayList<String> removals;
+
+        /** Returns the id of the current commit. */
+        String head() {
+            return head;
+        }
+
+        /** Returns the commit ids by branch name. */
+        HashMap<String, String> branches() {
+            return branches;
+        }
+
+        /** Returns the name of the current branch. */
+        String currentBranch() {
+            return currentBranch;
+        }
+
+        /** Returns the names of the files staged for removal. */
+        ArrayList<String> removals() {
+            return removals == null ? new ArrayList<>() : removals;
+        }
+    }
+
+    /** The fields of the released gitlet.Commit. */
+    static class OldCommit implements Serializable {
+        /** Serialization id, as in the release. */
+        private static final long serialVersionUID = COMMIT_UID;
+
+        /** The id of the commit. */
+        private String sha_id;
+        /** Parent ids; the initial commit's only parent is "". */
+        private ArrayList<String> parents;
+        /** The time of the commit. */
+        private Date commitDate;
+        /** Blob ids by file name. */
+        private HashMap<String, String> blobs;
+        /** The commit message. */
+        private String message;
+
+        /** An old commit with ID, PARENTS, DATE, BLOBS and MESSAGE. */
+        OldCommit(String id, ArrayList<String> parents, Date date,
+                  HashMap<String, String> blobs, String message) {
+            this.sha_id = id;
+            this.parents = parents;
+            this.commitDate = date;
+            this.blobs = blobs;
+            this.message = message;
+        }
+
+        /** Returns the id of the first parent, or null for the initial
+         *  commit. */
+        String parent() {
+            return parents.isEmpty() || parents.get(0).isEmpty() ? null
+                : parents.get(0);
+        }
+
+        /** Returns this commit in the current form, with the same id and
+         *  a tree, which is written, built from its map of blobs.  The
+         *  release recorded each file it carried over unchanged from the
+         *  first parent under its own name instead of a blob id; such
+         *  files take their ids from PARENTFILES, the files of the first
+         *  parent. */
+        Commit convert(Map<String, String> parentFiles) {
+            HashMap<String, String> files = new HashMap<>();
+            for (Map.Entry<String, String> blob : blobs.entrySet()) {
+                String id = blob.getValue();
+                if (!isId(id)) {
+                    id = parentFiles.get(blob.getKey());
+                }
+                if (id != null) {
+                    files.put(blob.getKey(), id);
+                }
+            }
+            Commit result = new Commit();
+            result.addParent(parent() == null ? "" : parent());
+            for (int i = 1; i < parents.size(); i += 1) {
+                result.addParent(parents.get(i));
+            }
+            result.setCommitDate(commitDate);
+            result.setMessage(message);
+            result.setTree(Tree.update(null, files, true));
+            return result;
+        }
+    }
+
+    /** Returns true iff STR is a full hex SHA-1 id. */
+    private static boolean isId(String str) {
+        return str != null && str.length() == Utils.UID_LENGTH
+            && str.chars().allMatch(c -> c >= '0' && c <= '9'
+                                    || c >= 'a' && c <= 'f');
+    }
+
+    /** A stream that reads the released classes as their stand-ins. */
+    private static class Input extends ObjectInputStream {
+
+        /** A stream reading from IN. */
+        Input(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor()
+            throws IOException, ClassNotFoundException {
+            ObjectStreamClass desc = super.readClassDescriptor();
+            Class<?> standIn;
+            long uid;
+            switch (desc.getName()) {
+                case "gitlet.Repository":
+                    standIn = OldRepository.class;
+                    uid = REPOSITORY_UID;
+                    break;
+                case "gitlet.Commit":
+                    standIn = OldCommit.class;
+                    uid = COMMIT_UID;
+                    break;
+                default:
+                    return desc;
+            }
+            if (desc.getSerialVersionUID() != uid) {
+                throw new InvalidClassException(desc.getName(),
+                                                "not from a gitlet release");
+            }
+            return ObjectStreamClass.lookup(standIn);
+        }
+    }
+
+    /** Returns true iff FILE was written by Java serialization. */
+    static boolean isSerialized(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return (in.read() << 8 | in.read()) == Utils.SERIAL_MAGIC;
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read %s: %s", file,
+                              excp.getMessage());
+        }
+    }
+
+    /** Returns the repository stored in REPO_FILE. */
+    static OldRepository readRepository() {
+        return read(REPO_FILE, OldRepository.class);
+    }
+
+    /** Returns the commit stored in FILE. */
+    static OldCommit readCommit(File file) {
+        return read(file, OldCommit.class);
+    }
+
+    /** Returns the object of class EXPECTED stored in FILE. */
+    private static <T> T read(File file, Class<T> expected) {
+        try (ObjectInputStream in = new Input(new FileInputStream(file))) {
+            return expected.cast(in.readObject());
+        } catch (IOException | ClassNotFoundException
+                 | ClassCastException excp) {
+            throw Utils.error("Cannot read %s from an older gitlet: %s",
+                              file.getName(), excp.getMessage());
+        }
+    }
+}
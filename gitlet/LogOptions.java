@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** The options that select commits for log, global-log and find:
+ *      -n N            at most N commits, the newest
+ *      --grep TEXT     commits whose message contains TEXT
+ *      --since DATE    commits made at or after DATE
+ *      --until DATE    commits made at or before DATE
+ *      -- PATH ...     commits that change a PATH, a file or directory,
+ *                      from their first parent (log and global-log)
+ *  A DATE is yyyy-mm-dd, optionally followed by a space or T and hh:mm or
+ *  hh:mm:ss, in local time; a day given alone as --until includes the
+ *  whole day.  "--" must come last, followed by at least one PATH.
+ *  log follows first parents only, so a change made on a branch that was
+ *  later merged is listed as the merge commit, not as the commits of that
+ *  branch; global-log lists those as well.
+ *  @author Felix Yu
+ */
+class LogOptions {
+
+    /** Text that selected messages contain, or null. */
+    String grep;
+    /** Earliest and latest selected commit times in milliseconds. */
+    long since = Long.MIN_VALUE, until = Long.MAX_VALUE;
+    /** Maximum number of commits selected. */
+    int limit = Integer.MAX_VALUE;
+    /** Files or directories that selected commits change, as given. */
+    List<String> paths = new ArrayList<>();
+
+    /** Returns true iff ARG names an option. */
+    static boolean isOption(String arg) {
+        return arg.equals("-n") || arg.equals("--grep")
+            || arg.equals("--since") || arg.equals("--until")
+            || arg.equals("--");
+    }
+
+    /** Returns the options in ARGS[START ..]. */
+    static LogOptions parse(String[] args, int start) {
+        LogOptions result = new LogOptions();
+        for (int i = start; i < args.length; i += 2) {
+            if (!isOption(args[i]) || i + 1 == args.length) {
+                throw new GitletException("Incorrect operands.");
+            }
+            if (args[i].equals("--")) {
+                result.paths.addAll(Arrays.asList(args).subList(i + 1,
+                                                                args.length));
+                break;
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-n":
+                    if (!value.matches("[0-9]{1,9}")) {
+                        throw new GitletException("Incorrect operands.");
+                    }
+                    result.limit = Integer.parseInt(value);
+                    break;
+                case "--grep":
+                    result.grep = value;
+                    break;
+                case "--since":
+                    result.since = time(value, false);
+                    break;
+                default:
+                    result.until = time(value, true);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /** Returns true iff these options select only some commits. */
+    boolean filters() {
+        return grep != null || since != Long.MIN_VALUE
+            || until != Long.MAX_VALUE || limit != Integer.MAX_VALUE
+            || !paths.isEmpty();
+    }
+
+    /** Returns the time in milliseconds of DATE, or of the end of its day
+     *  if it gives no time of day and END. */
+    private static long time(String date, boolean end) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (date.length() == "yyyy-mm-dd".length()) {
+                LocalDate day = LocalDate.parse(date);
+                if (end) {
+                    return day.plusDays(1).atStartOfDay(zone).toInstant()
+                        .toEpochMilli() - 1;
+                }
+                return day.atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(date.replace(' ', 'T')).atZone(zone)
+                .toInstant().toEpochMilli();
+        } catch (DateTimeParseException excp) {
+            throw new GitletException("Incorrect date: " + date);
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package gitlet;
 
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /** Driver class for Gitlet, the tiny stupid version-control system.
  *  @author Felix Yu
@@ -16,86 +20,203 @@ public class Main {
     static final File stagingDir = Utils.join(gitletDir, "staging");
     static final File blobs = Utils.join(gitletDir, "blobs");
     static final File commits = Utils.join(gitletDir, "commits");
-    static final File repoFile = Utils.join(gitletDir, "repo");
+    static final File tmpDir = Utils.join(gitletDir, "tmp");
     static final File CWD = new File(".");
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND> .... */
+     *  <COMMAND> <OPERAND> ....  The command "batch" instead runs the
+     *  commands on the lines of the standard input, and "serve" runs
+     *  commands sent to the socket .gitlet/daemon.sock (see Daemon).
+     *  The command may be preceded by --stats, to print the time taken
+     *  by each phase and the number of bytes read and written, files
+     *  hashed, objects read and cache hits on the standard error, by
+     *  --trace FILE, to also write each timed phase to FILE (see
+     *  Stats), and by -c NAME=VALUE, to set the system property
+     *  gitlet.NAME, which takes the place of the environment variable
+     *  for that setting (-c largeFiles=1m for GITLET_LARGE_FILES, say). */
     public static void main(String... args) throws IOException {
-        // FILL THIS IN
-        if (args.length != 0) {
-            if (gitletDir.exists()) {
-                repo = Utils.readObject(repoFile, Repository.class);
+        repo = null;
+        args = options(args);
+        try {
+            if (args.length == 0) {
+                throw new GitletException("Please enter a command.");
+            } else if (args[0].equals("batch")) {
+                checkOperands(1, args);
+                Daemon.batch(new BufferedReader(
+                    new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+            } else if (args[0].equals("serve")) {
+                checkError(1, args);
+                Daemon.serve();
+            } else {
+                execute(args);
             }
-            switch(args[0]) {
-                case "init":
-                    checkOperands(1, args);
-                    initRepo();
-                    break;
-                case "add":
-                    checkError(2, args);
-                    add(args[1]);
-                    break;
-                case "commit":
-                    checkError(2, args);
-                    commit(args[1]);
-                    break;
-                case "rm":
-                    checkError(2, args);
-                    remove(args[1]);
-                    break;
-                case "log":
-                    checkError(1, args);
-                    log();
-                    break;
-                case "global-log":
-                    checkError(1, args);
-                    globalLog();
-                    break;
-                case "find":
-                    checkError(2, args);
-                    find(args[1]);
-                    break;
-                case "checkout":
-                    checkout(args);
-                    break;
-                case "status":
-                    status();
-                    break;
-                case "branch":
-                    checkError(2, args);
-                    branch(args[1]);
-                    break;
-                case "rm-branch":
-                    checkError(2, args);
-                    removeBranch(args[1]);
-                    break;
-                case "reset":
-                    checkError(2, args);
-                    reset(args[1]);
-                    break;
-                case "merge":
-                    checkError(2, args);
-                    merge(args[1]);
-                default:
-                    System.out.println("No command with that name exists.");
-                    System.exit(0);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } finally {
+            System.out.flush();
+            Stats.report(System.err);
+        }
+    }
+
+    /** Turns on Stats as the options --stats and --trace FILE at the start
+     *  of ARGS ask, sets the properties that the options -c NAME=VALUE
+     *  there give, and returns the rest of ARGS. */
+    private static String[] options(String[] args) {
+        int k;
+        File trace = null;
+        boolean stats = false;
+        for (k = 0; k < args.length; k += 1) {
+            if (args[k].equals("--stats")) {
+                stats = true;
+            } else if (args[k].equals("--trace") && k + 1 < args.length) {
+                k += 1;
+                trace = new File(args[k]);
+            } else if (args[k].equals("-c") && k + 1 < args.length
+                       && args[k + 1].indexOf('=') > 0) {
+                k += 1;
+                int eq = args[k].indexOf('=');
+                System.setProperty("gitlet." + args[k].substring(0, eq),
+                                   args[k].substring(eq + 1));
+            } else {
+                break;
             }
-            if (!gitletDir.exists()) {
-                repoFile.createNewFile();
+        }
+        if (stats || trace != null) {
+            Stats.enable(trace);
+        }
+        return Arrays.copyOfRange(args, k, args.length);
+    }
+
+    /** Runs the command ARGS as from the command line: against the
+     *  repository of this directory, opened afresh, writing back its
+     *  changes at the end.  Throws a GitletException with the message to
+     *  print if the command fails. */
+    static void execute(String... args) throws IOException {
+        repo = null;
+        run(args);
+        save();
+    }
+
+    /** Runs the command ARGS against the repository of this directory,
+     *  which stays open for later commands.  Changes are not written back
+     *  until save is called.  A repository left open by an earlier command
+     *  first drops the records that other processes have changed since
+     *  (see Repository.refresh).  Throws a GitletException with the
+     *  message to print if the command fails. */
+    static void run(String... args) throws IOException {
+        try (Stats.Phase phase = Stats.phase(args[0])) {
+            if (repo == null && gitletDir.exists()) {
+                if (!args[0].equals("init") && !args[0].equals("migrate")) {
+                    MetaStore.checkFormat();
+                }
+                repo = new Repository();
+            } else if (repo != null) {
+                repo.refresh();
+            }
+            dispatch(args);
+        }
+    }
+
+    /** Runs the command ARGS against the open repository. */
+    private static void dispatch(String... args) throws IOException {
+        switch(args[0]) {
+            case "init":
+                checkOperands(1, args);
+                initRepo();
+                break;
+            case "add":
+                repoExists();
+                if (args.length < 2) {
+                    checkOperands(2, args);
+                }
+                add(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "commit":
+                checkError(2, args);
+                commit(args[1]);
+                break;
+            case "rm":
+                checkError(2, args);
+                remove(args[1]);
+                break;
+            case "log":
+                repoExists();
+                log(LogOptions.parse(args, 1));
+                break;
+            case "global-log":
+                repoExists();
+                globalLog(LogOptions.parse(args, 1));
+                break;
+            case "find":
+                repoExists();
+                if (args.length == 2 && !LogOptions.isOption(args[1])) {
+                    find(args[1]);
+                } else {
+                    LogOptions options = LogOptions.parse(args, 1);
+                    if (!options.filters() || !options.paths.isEmpty()) {
+                        checkOperands(2, args);
+                    }
+                    find(options);
+                }
+                break;
+            case "checkout":
+                repoExists();
+                checkout(args);
+                break;
+            case "status":
+                repoExists();
+                status();
+                break;
+            case "branch":
+                checkError(2, args);
+                branch(args[1]);
+                break;
+            case "rm-branch":
+                checkError(2, args);
+                removeBranch(args[1]);
+                break;
+            case "reset":
+                checkError(2, args);
+                reset(args[1]);
+                break;
+            case "gc":
+                checkError(1, args);
+                gc();
+                break;
+            case "merge":
+                checkError(2, args);
+                merge(args[1]);
+                break;
+            case "diff":
+                repoExists();
+                if (args.length > 3) {
+                    checkOperands(3, args);
+                }
+                diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "migrate":
+                checkError(1, args);
+                migrate();
+                break;
+            default:
+                throw new GitletException("No command with that name exists.");
+        }
+    }
+
+    /** Writes back the changes made by the commands run since the last
+     *  save. */
+    static void save() {
+        if (repo != null) {
+            try (Stats.Phase phase = Stats.phase("save")) {
+                repo.save();
             }
-            Utils.writeObject(repoFile, repo);
-        } else {
-            System.out.println("Please enter a command.");
-            System.exit(0);
         }
     }
 
     /** Called when user inputs incorrect number of operands. */
     public static void checkOperands(int correctNum, String[] args) {
         if (args.length != correctNum) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
     }
 
@@ -106,8 +227,7 @@ public class Main {
 
     public static void repoExists() {
         if (!gitletDir.exists()) {
-            System.out.println("Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            throw new GitletException("Gitlet version-control system already exists in the current directory.");
         }
     }
 
@@ -117,24 +237,24 @@ public class Main {
     public static void initRepo() throws IOException {
         File tempFile = new File(".gitlet");
         if (tempFile.exists()) {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            throw new GitletException("A Gitlet version-control system already exists in the current directory.");
         }
         gitletDir.mkdir();
         stagingDir.mkdir();
         blobs.mkdir();
         commits.mkdir();
         repo = new Repository();
+        repo.init();
     }
 
-    public static void add(String fileName) throws IOException {
-        repo.add(fileName);
+    /** Stages each of FILENAMES for the next commit. */
+    public static void add(String... fileNames) throws IOException {
+        repo.add(fileNames);
     }
 
     public static void commit(String msg) throws IOException {
         if (msg.equals("")) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw new GitletException("Please enter a commit message.");
         }
         repo.commit(msg);
     }
@@ -147,18 +267,26 @@ public class Main {
         repo.removeBranch(branchName);
     }
 
-    public static void log() {
-        repo.log();
+    public static void log(LogOptions options) throws IOException {
+        repo.log(options);
     }
 
-    public static void globalLog() {
-        repo.globalLog();
+    public static void globalLog(LogOptions options) throws IOException {
+        repo.globalLog(options);
     }
 
     public static void find(String msg) {
         repo.find(msg);
     }
 
+    public static void find(LogOptions options) {
+        repo.find(options);
+    }
+
+    public static void diff(String... operands) throws IOException {
+        repo.diff(operands);
+    }
+
     public static void status() {
         repo.status();
     }
@@ -166,22 +294,19 @@ public class Main {
     /** Handles ARGS from main and calls the corresponding method based on ARGS. */
     public static void checkout(String... args) throws IOException {
         if (args.length > 4 || args.length < 2) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         if (args.length == 4) {
             if (args[2].equals("--")) {
                 checkoutFile(args[1], args[3]);
             } else {
-                System.out.println("Incorrect operands.");
-                System.exit(0);
+                throw new GitletException("Incorrect operands.");
             }
         } else if (args.length == 3) {
             if (args[1].equals("--")) {
                 checkoutFile(args[2]);
             } else {
-                System.out.println("Incorrect operands.");
-                System.exit(0);
+                throw new GitletException("Incorrect operands.");
             }
         } else {
             checkoutBranch(args[1]);
@@ -217,8 +342,20 @@ public class Main {
         repo.reset(commitID);
     }
 
-    public static void merge(String branchName) {
+    /** Packs the blobs of the repository into compressed pack files. */
+    public static void gc() throws IOException {
+        repo.gc();
+    }
+
+    /** Merges the branch BRANCHNAME into the current branch. */
+    public static void merge(String branchName) throws IOException {
         repo.merge(branchName);
     }
 
+    /** Converts the objects of a repository made by an older version of
+     *  gitlet to the current format. */
+    public static void migrate() throws IOException {
+        repo.migrate();
+    }
+
 }
@@ -0,0 +1,527 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/** An on-disk index of commit messages and dates, by CommitGraph
+ *  position, used by find and log to select commits without reading
+ *  them.  Like CommitIndex, it has two parts.  .gitlet/message-index is
+ *  memory-mapped and covers positions 0 .. N-1:
+ *      magic, version, N, K, P, T (ints),
+ *      N+1 message offsets into the text (ints),
+ *      N (time, position) pairs sorted by time (long, int),
+ *      K trigrams, ascending (ints), K+1 posting offsets (ints),
+ *      P postings: for each trigram, the ascending positions of the
+ *        messages containing it (ints),
+ *      T bytes of text: the UTF-8 messages, one after another
+ *  where a trigram is three consecutive bytes of a message packed into
+ *  an int.  .gitlet/message-index.new holds the messages of the positions
+ *  after N, each as position (int), length (int), UTF-8 bytes.  When it
+ *  grows past max(MIN_RECENT, N / 64) messages, both parts are merged
+ *  into a new sorted file, whose postings only need appending since the
+ *  new positions follow the old ones.
+ *
+ *  A substring search intersects the postings of the trigrams of the
+ *  pattern and checks each remaining message; a date range is a binary
+ *  search of the pairs sorted by time.  Patterns shorter than a trigram
+ *  are checked against every message.  Commits the index does not cover
+ *  yet are read once and kept with the recent messages.
+ *  @author Felix Yu
+ */
+class MessageIndex {
+
+    /** The sorted part of the index. */
+    static final File SORTED_FILE = Utils.join(Main.gitletDir, "message-index");
+    /** The recent part of the index. */
+    static final File RECENT_FILE =
+        Utils.join(Main.gitletDir, "message-index.new");
+
+    /** First int of the sorted file. */
+    private static final int MAGIC = 0x674d5349;
+    /** Version of the sorted file format. */
+    private static final int VERSION = 1;
+    /** Byte length of the header of the sorted file. */
+    private static final int HEADER = 24;
+    /** Byte length of a (time, position) pair. */
+    private static final int PAIR = 12;
+    /** Smallest number of messages the recent part may hold. */
+    private static final int MIN_RECENT = 1024;
+
+    /** The graph whose positions this index holds. */
+    private final CommitGraph graph;
+    /** Reads the commit with a given id. */
+    private final Function<String, Commit> loader;
+
+    /** The mapped sorted file, or null if there is none. */
+    private ByteBuffer buf;
+    /** Number of positions, trigrams and postings in the sorted file. */
+    private int n, k, p;
+    /** Positions in buf of the offsets, pairs, trigrams, posting offsets,
+     *  postings and text. */
+    private int offsetsAt, pairsAt, keysAt, startsAt, postingsAt, textAt;
+    /** Messages of the positions n, n + 1, ... after the sorted part. */
+    private final List<byte[]> recent = new ArrayList<>();
+    /** Number of recent messages that are in the recent file. */
+    private int saved;
+    /** Byte length of the complete records of the recent file. */
+    private long recentEnd;
+
+    /** Opens the index of GRAPH, whose commits are read by LOADER, building
+     *  it if it does not exist yet or has an older format. */
+    MessageIndex(CommitGraph graph, Function<String, Commit> loader) {
+        this.graph = graph;
+        this.loader = loader;
+        load();
+    }
+
+    /** Reads the index from its files, building it if it does not exist
+     *  yet or has an older format. */
+    private void load() {
+        recent.clear();
+        saved = 0;
+        recentEnd = 0;
+        buf = SORTED_FILE.isFile() ? map(SORTED_FILE) : null;
+        if (buf == null || buf.capacity() < HEADER || buf.getInt(0) != MAGIC
+            || buf.getInt(4) != VERSION) {
+            buf = null;
+            setSizes();
+            RECENT_FILE.delete();
+            catchUp();
+            merge();
+            return;
+        }
+        setSizes();
+        if (RECENT_FILE.isFile()) {
+            ByteBuffer records =
+                ByteBuffer.wrap(Utils.readContents(RECENT_FILE));
+            while (records.remaining() >= 8) {
+                int pos = records.getInt();
+                int length = records.getInt();
+                if (length < 0 || length > records.remaining()) {
+                    break;
+                }
+                byte[] message = new byte[length];
+                records.get(message);
+                recentEnd = records.position();
+                if (pos == n + recent.size()) {
+                    recent.add(message);
+                    saved += 1;
+                } else if (pos > n + recent.size()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Sets n, k, p and the section positions from the header of buf. */
+    private void setSizes() {
+        if (buf == null) {
+            n = k = p = 0;
+            return;
+        }
+        n = buf.getInt(8);
+        k = buf.getInt(12);
+        p = buf.getInt(16);
+        offsetsAt = HEADER;
+        pairsAt = offsetsAt + (n + 1) * 4;
+        keysAt = pairsAt + n * PAIR;
+        startsAt = keysAt + k * 4;
+        postingsAt = startsAt + (k + 1) * 4;
+        textAt = postingsAt + p * 4;
+    }
+
+    /** Adds the messages of the commits in the graph that the index does
+     *  not cover yet to the recent messages. */
+    private void catchUp() {
+        for (int pos = n + recent.size(); pos < graph.size(); pos += 1) {
+            recent.add(loader.apply(graph.idAt(pos)).getMessage()
+                       .getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Returns the positions of the commits whose message equals TEXT, if
+     *  EXACT, or else contains it (any message if TEXT is null), and whose
+     *  time is between SINCE and UNTIL inclusive. */
+    BitSet search(String text, boolean exact, long since, long until) {
+        catchUp();
+        byte[] pattern = text == null ? null
+            : text.getBytes(StandardCharsets.UTF_8);
+        BitSet result;
+        boolean timed = since != Long.MIN_VALUE || until != Long.MAX_VALUE;
+        if (pattern != null && pattern.length >= 3) {
+            result = withTrigrams(pattern);
+        } else if (timed) {
+            result = inRange(since, until);
+            timed = false;
+        } else {
+            result = new BitSet(n);
+            result.set(0, n);
+        }
+        for (int pos = result.nextSetBit(0); pos >= 0;
+             pos = result.nextSetBit(pos + 1)) {
+            if (timed && !inRange(pos, since, until)
+                || pattern != null && !matches(pos, pattern, exact)) {
+                result.clear(pos);
+            }
+        }
+        for (int i = 0; i < recent.size(); i += 1) {
+            int pos = n + i;
+            if (inRange(pos, since, until)
+                && (pattern == null || matches(pos, pattern, exact))) {
+                result.set(pos);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the message of the commit at POS. */
+    String message(int pos) {
+        catchUp();
+        if (pos >= n) {
+            return new String(recent.get(pos - n), StandardCharsets.UTF_8);
+        }
+        int start = buf.getInt(offsetsAt + pos * 4);
+        byte[] message = new byte[buf.getInt(offsetsAt + pos * 4 + 4) - start];
+        buf.get(textAt + start, message);
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the positions below n of the messages that contain every
+     *  trigram of PATTERN. */
+    private BitSet withTrigrams(byte[] pattern) {
+        int[] keys = trigrams(pattern);
+        int[] from = new int[keys.length], to = new int[keys.length];
+        int smallest = 0;
+        for (int i = 0; i < keys.length; i += 1) {
+            int j = find(keys[i]);
+            if (j < 0) {
+                return new BitSet();
+            }
+            from[i] = buf.getInt(startsAt + j * 4);
+            to[i] = buf.getInt(startsAt + j * 4 + 4);
+            if (to[i] - from[i] < to[smallest] - from[smallest]) {
+                smallest = i;
+            }
+        }
+        BitSet result = new BitSet(n);
+        candidates:
+        for (int q = from[smallest]; q < to[smallest]; q += 1) {
+            int pos = buf.getInt(postingsAt + q * 4);
+            for (int i = 0; i < keys.length; i += 1) {
+                if (i != smallest && !contains(from[i], to[i], pos)) {
+                    continue candidates;
+                }
+            }
+            result.set(pos);
+        }
+        return result;
+    }
+
+    /** Returns the positions below n whose time is between SINCE and UNTIL
+     *  inclusive. */
+    private BitSet inRange(long since, long until) {
+        BitSet result = new BitSet(n);
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buf.getLong(pairsAt + mid * PAIR) < since) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < n; i += 1) {
+            if (buf.getLong(pairsAt + i * PAIR) > until) {
+                break;
+            }
+            result.set(buf.getInt(pairsAt + i * PAIR + 8));
+        }
+        return result;
+    }
+
+    /** Returns true iff the commit at POS was made between SINCE and UNTIL
+     *  inclusive. */
+    private boolean inRange(int pos, long since, long until) {
+        long time = graph.time(pos);
+        return since <= time && time <= until;
+    }
+
+    /** Returns true iff the message at POS equals PATTERN, if EXACT, or
+     *  else contains it. */
+    private boolean matches(int pos, byte[] pattern, boolean exact) {
+        ByteBuffer text;
+        int start, end;
+        if (pos >= n) {
+            text = ByteBuffer.wrap(recent.get(pos - n));
+            start = 0;
+            end = text.capacity();
+        } else {
+            text = buf;
+            start = textAt + buf.getInt(offsetsAt + pos * 4);
+            end = textAt + buf.getInt(offsetsAt + pos * 4 + 4);
+        }
+        if (exact && end - start != pattern.length) {
+            return false;
+        }
+        outer:
+        for (int i = start; i + pattern.length <= end; i += 1) {
+            for (int j = 0; j < pattern.length; j += 1) {
+                if (text.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns the index among the trigrams of the sorted part of KEY, or
+     *  -1 if it is not there. */
+    private int find(int key) {
+        int lo = 0, hi = k - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = Integer.compare(buf.getInt(keysAt + mid * 4), key);
+            if (c == 0) {
+                return mid;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns true iff the postings FROM .. TO-1 include POS. */
+    private boolean contains(int from, int to, int pos) {
+        int lo = from, hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = Integer.compare(buf.getInt(postingsAt + mid * 4), pos);
+            if (c == 0) {
+                return true;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the distinct trigrams of BYTES in ascending order. */
+    private static int[] trigrams(byte[] bytes) {
+        int[] result = new int[Math.max(0, bytes.length - 2)];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+                | bytes[i + 2] & 0xff;
+        }
+        return Arrays.stream(result).sorted().distinct().toArray();
+    }
+
+    /** Writes the messages of commits that the files of the index do not
+     *  cover yet.  The caller must hold the RefLock and must have saved
+     *  the graph.  The index is first read again, so that messages other
+     *  processes added meanwhile are kept. */
+    void save() {
+        load();
+        catchUp();
+        if (saved == recent.size()) {
+            return;
+        }
+        if (recent.size() > Math.max(MIN_RECENT, n / 64)) {
+            merge();
+            return;
+        }
+        try (FileChannel out = FileChannel.open(
+                 RECENT_FILE.toPath(), StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE)) {
+            out.truncate(recentEnd);
+            out.position(recentEnd);
+            for (int i = saved; i < recent.size(); i += 1) {
+                byte[] message = recent.get(i);
+                ByteBuffer record = ByteBuffer.allocate(8 + message.length);
+                record.putInt(n + i).putInt(message.length).put(message);
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            recentEnd = out.position();
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write message index: %s",
+                              excp.getMessage());
+        }
+        saved = recent.size();
+    }
+
+    /** Replaces the sorted file by one covering its positions and the
+     *  recent ones, and empties the recent part. */
+    private void merge() {
+        int r = recent.size();
+        long text = n == 0 ? 0 : buf.getInt(offsetsAt + n * 4);
+        TreeMap<Integer, IntList> added = new TreeMap<>();
+        for (int i = 0; i < r; i += 1) {
+            text += recent.get(i).length;
+            for (int key : trigrams(recent.get(i))) {
+                added.computeIfAbsent(key, x -> new IntList()).add(n + i);
+            }
+        }
+        if (text > Integer.MAX_VALUE) {
+            throw Utils.error("Commit messages too large to index.");
+        }
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        for (int j = 0; j < k; j += 1) {
+            counts.put(buf.getInt(keysAt + j * 4), postings(j));
+        }
+        for (Map.Entry<Integer, IntList> e : added.entrySet()) {
+            counts.merge(e.getKey(), e.getValue().size, Integer::sum);
+        }
+        long[][] pairs = new long[r][];
+        for (int i = 0; i < r; i += 1) {
+            pairs[i] = new long[] { graph.time(n + i), n + i };
+        }
+        Arrays.sort(pairs, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                    : Long.compare(a[1], b[1]));
+        Path tmp = null;
+        try {
+            Main.tmpDir.mkdir();
+            tmp = Files.createTempFile(Main.tmpDir.toPath(), "message-index",
+                                       ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                int total = 0;
+                for (int count : counts.values()) {
+                    total += count;
+                }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(n + r);
+                out.writeInt(counts.size());
+                out.writeInt(total);
+                out.writeInt((int) text);
+                int offset = 0;
+                for (int i = 0; i <= n; i += 1) {
+                    offset = n == 0 ? 0 : buf.getInt(offsetsAt + i * 4);
+                    out.writeInt(offset);
+                }
+                for (byte[] message : recent) {
+                    offset += message.length;
+                    out.writeInt(offset);
+                }
+                int q = 0;
+                for (int i = 0; i < n; i += 1) {
+                    long time = buf.getLong(pairsAt + i * PAIR);
+                    for (; q < r && pairs[q][0] < time; q += 1) {
+                        out.writeLong(pairs[q][0]);
+                        out.writeInt((int) pairs[q][1]);
+                    }
+                    out.writeLong(time);
+                    out.writeInt(buf.getInt(pairsAt + i * PAIR + 8));
+                }
+                for (; q < r; q += 1) {
+                    out.writeLong(pairs[q][0]);
+                    out.writeInt((int) pairs[q][1]);
+                }
+                for (int key : counts.keySet()) {
+                    out.writeInt(key);
+                }
+                int start = 0;
+                for (int count : counts.values()) {
+                    out.writeInt(start);
+                    start += count;
+                }
+                out.writeInt(start);
+                int j = 0;
+                for (int key : counts.keySet()) {
+                    if (j < k && buf.getInt(keysAt + j * 4) == key) {
+                        int end = buf.getInt(startsAt + j * 4 + 4);
+                        for (int i = buf.getInt(startsAt + j * 4); i < end;
+                             i += 1) {
+                            out.writeInt(buf.getInt(postingsAt + i * 4));
+                        }
+                        j += 1;
+                    }
+                    IntList mine = added.get(key);
+                    for (int i = 0; mine != null && i < mine.size; i += 1) {
+                        out.writeInt(mine.items[i]);
+                    }
+                }
+                byte[] block = new byte[1 << 16];
+                int length = n == 0 ? 0 : buf.getInt(offsetsAt + n * 4);
+                for (int i = 0; i < length; i += block.length) {
+                    int size = Math.min(block.length, length - i);
+                    buf.get(textAt + i, block, 0, size);
+                    out.write(block, 0, size);
+                }
+                for (byte[] message : recent) {
+                    out.write(message);
+                }
+            }
+            Files.move(tmp, SORTED_FILE.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(tmp);
+        } catch (IOException excp) {
+            throw Utils.error("Cannot write message index: %s",
+                              excp.getMessage());
+        }
+        RECENT_FILE.delete();
+        recent.clear();
+        saved = 0;
+        recentEnd = 0;
+        buf = map(SORTED_FILE);
+        setSizes();
+    }
+
+    /** Returns the number of postings of trigram J of the sorted part. */
+    private int postings(int j) {
+        return buf.getInt(startsAt + j * 4 + 4) - buf.getInt(startsAt + j * 4);
+    }
+
+    /** A growable list of ints. */
+    private static class IntList {
+        /** The ints, in items[0 .. size-1]. */
+        private int[] items = new int[4];
+        /** The number of ints. */
+        private int size;
+
+        /** Appends VALUE. */
+        void add(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            items[size] = value;
+            size += 1;
+        }
+    }
+
+    /** Returns the contents of FILE mapped into memory. */
+    private static ByteBuffer map(File file) {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                       0, in.length());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read message index: %s",
+                              excp.getMessage());
+        }
+    }
+}
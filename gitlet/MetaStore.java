@@ -0,0 +1,283 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/** The mutable metadata of a repository: HEAD, the branch refs and the
+ *  files staged for removal.  Each is kept as its own small record under
+ *  .gitlet, is read only when a command first asks for it, and is written
+ *  back by flush only if the command changed it.  Flush writes all the
+ *  changed records through one Journal record, so that a crash leaves
+ *  either all or none of them changed.  Each record is written back only
+ *  if it still holds what this store read from it, so that a command
+ *  never silently undoes the changes another process made meanwhile.
+ *  @author Felix Yu
+ */
+class MetaStore {
+
+    /** Holds the name of the current branch. */
+    static final File HEAD_FILE = Utils.join(Main.gitletDir, "HEAD");
+    /** Holds one file per branch, containing the branch's commit id. */
+    static final File REFS_DIR = Utils.join(Main.gitletDir, "refs");
+    /** Holds the names of files staged for removal, one per line. */
+    static final File REMOVALS_FILE = Utils.join(Main.gitletDir, "removals");
+
+    /** The current branch, or null if HEAD has not been read yet. */
+    private String currentBranch;
+    /** True iff currentBranch must be written back. */
+    private boolean headDirty;
+
+    /** Branch refs read or written by this command. */
+    private final HashMap<String, String> refs = new HashMap<>();
+    /** Names of branches whose refs must be written back. */
+    private final HashSet<String> dirtyRefs = new HashSet<>();
+    /** Names of branches whose refs must be deleted. */
+    private final HashSet<String> deletedRefs = new HashSet<>();
+
+    /** Files staged for removal, or null if not read yet. */
+    private ArrayList<String> removals;
+    /** True iff removals must be written back. */
+    private boolean removalsDirty;
+
+    /** The contents of each record file when it was first read, or
+     *  null if it did not exist. */
+    private final HashMap<File, String> expected = new HashMap<>();
+
+    /** Journal of the changes written back by flush. */
+    private final Journal journal = new Journal();
+
+    /** Opens the store of the repository, completing any changes that an
+     *  interrupted command left in the journal. */
+    MetaStore() {
+        if (Main.gitletDir.isDirectory()) {
+            try (RefLock lock = RefLock.tryAcquire()) {
+                /* A process holding the lock may be writing the journal
+                 * now; it will finish its own changes. */
+                if (lock != null) {
+                    Journal.recover();
+                }
+            }
+        }
+    }
+
+    /** Checks that the repository has the records of this store.  A
+     *  repository made before they existed keeps all its metadata in
+     *  .gitlet/repo and must first be converted by the migrate command. */
+    static void checkFormat() {
+        if (!HEAD_FILE.isFile()) {
+            throw Utils.error("The repository is in an old format;"
+                              + " run migrate.");
+        }
+    }
+
+    /** Creates the directories used by a new, empty store. */
+    static void create() {
+        REFS_DIR.mkdir();
+    }
+
+    /** Returns the name of the current branch. */
+    String currentBranch() {
+        if (currentBranch == null) {
+            currentBranch = read(HEAD_FILE).trim();
+        }
+        return currentBranch;
+    }
+
+    /** Makes BRANCH the current branch. */
+    void setCurrentBranch(String branch) {
+        currentBranch = branch;
+        headDirty = true;
+    }
+
+    /** Returns the commit id BRANCH points to, or null if there is no
+     *  such branch. */
+    String readRef(String branch) {
+        if (deletedRefs.contains(branch)) {
+            return null;
+        }
+        String id = refs.get(branch);
+        if (id == null) {
+            id = read(Utils.join(REFS_DIR, branch));
+            if (id == null) {
+                return null;
+            }
+            id = id.trim();
+            refs.put(branch, id);
+        }
+        return id;
+    }
+
+    /** Points BRANCH at the commit with ID, creating it if needed. */
+    void writeRef(String branch, String id) {
+        refs.put(branch, id);
+        deletedRefs.remove(branch);
+        dirtyRefs.add(branch);
+    }
+
+    /** Deletes the ref of BRANCH. */
+    void deleteRef(String branch) {
+        refs.remove(branch);
+        dirtyRefs.remove(branch);
+        deletedRefs.add(branch);
+    }
+
+    /** Returns the names of all branches in lexicographic order. */
+    List<String> branchNames() {
+        TreeSet<String> names = new TreeSet<>(Arrays.asList(REFS_DIR.list()));
+        names.addAll(dirtyRefs);
+        names.removeAll(deletedRefs);
+        return new ArrayList<>(names);
+    }
+
+    /** Returns the files staged for removal.  Callers that modify the
+     *  result must call removalsChanged. */
+    ArrayList<String> removals() {
+        if (removals == null) {
+            removals = new ArrayList<>();
+            String lines = read(REMOVALS_FILE);
+            if (lines != null) {
+                for (String line : lines.split("\n")) {
+                    if (!line.isEmpty()) {
+                        removals.add(line);
+                    }
+                }
+            }
+        }
+        return removals;
+    }
+
+    /** Records that the list of removals was modified. */
+    void removalsChanged() {
+        removalsDirty = true;
+    }
+
+    /** Returns true iff a record changed since the last flush. */
+    boolean changed() {
+        return headDirty || removalsDirty || !dirtyRefs.isEmpty()
+            || !deletedRefs.isEmpty();
+    }
+
+    /** Writes every record changed since the last flush.  The caller
+     *  must hold the RefLock.  If another process changed any record this
+     *  store read or is to write since it read it, so that the changes
+     *  may rest on stale values, nothing is written, everything
+     *  this store holds is forgotten, so that it is read again, and a
+     *  GitletException is thrown. */
+    void flush() {
+        LinkedHashMap<File, String> changes = new LinkedHashMap<>();
+        if (headDirty) {
+            changes.put(HEAD_FILE, currentBranch + "\n");
+        }
+        for (String branch : dirtyRefs) {
+            changes.put(Utils.join(REFS_DIR, branch), refs.get(branch) + "\n");
+        }
+        for (String branch : deletedRefs) {
+            changes.put(Utils.join(REFS_DIR, branch), null);
+        }
+        if (removalsDirty) {
+            StringBuilder out = new StringBuilder();
+            for (String name : removals) {
+                out.append(name).append('\n');
+            }
+            changes.put(REMOVALS_FILE, out.toString());
+        }
+        for (Map.Entry<File, String> read : expected.entrySet()) {
+            if (!Objects.equals(read.getValue(), contents(read.getKey()))) {
+                forget();
+                throw conflict();
+            }
+        }
+        for (Map.Entry<File, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                journal.delete(change.getKey());
+            } else {
+                journal.write(change.getKey(), change.getValue());
+            }
+            expected.put(change.getKey(), change.getValue());
+        }
+        journal.commit();
+        headDirty = false;
+        dirtyRefs.clear();
+        deletedRefs.clear();
+        removalsDirty = false;
+    }
+
+    /** Forgets each record that this store read but has not changed if
+     *  another process has changed its file since, so that a store kept
+     *  open across commands (see Daemon) reads it again when next asked
+     *  for.  A record this store changed is kept, and flush reports the
+     *  conflict. */
+    void refresh() {
+        Iterator<Map.Entry<File, String>> reads =
+            expected.entrySet().iterator();
+        while (reads.hasNext()) {
+            Map.Entry<File, String> read = reads.next();
+            File file = read.getKey();
+            if (Objects.equals(read.getValue(), contents(file))) {
+                continue;
+            }
+            if (file.equals(HEAD_FILE)) {
+                if (headDirty) {
+                    continue;
+                }
+                currentBranch = null;
+            } else if (file.equals(REMOVALS_FILE)) {
+                if (removalsDirty) {
+                    continue;
+                }
+                removals = null;
+            } else {
+                String branch =
+                    REFS_DIR.toPath().relativize(file.toPath()).toString();
+                if (dirtyRefs.contains(branch)
+                    || deletedRefs.contains(branch)) {
+                    continue;
+                }
+                refs.remove(branch);
+            }
+            reads.remove();
+        }
+    }
+
+    /** Returns the error reported when another process changed the
+     *  repository under a command. */
+    static GitletException conflict() {
+        return new GitletException("The repository was changed by"
+                                   + " another command; try again.");
+    }
+
+    /** Returns the contents of FILE, or null if it does not exist,
+     *  remembering them as expected if FILE was not read before. */
+    private String read(File file) {
+        String result = contents(file);
+        expected.putIfAbsent(file, result);
+        return result;
+    }
+
+    /** Returns the contents of FILE, or null if it does not exist. */
+    private static String contents(File file) {
+        return file.isFile() ? Utils.readContentsAsString(file) : null;
+    }
+
+    /** Forgets every record read or changed, so that each is read from
+     *  its file again when next asked for. */
+    private void forget() {
+        currentBranch = null;
+        headDirty = false;
+        refs.clear();
+        dirtyRefs.clear();
+        deletedRefs.clear();
+        removals = null;
+        removalsDirty = false;
+        expected.clear();
+    }
+}
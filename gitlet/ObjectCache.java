@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/** A cache of stored objects (commits or trees) keyed by id, which reads
+ *  an object from disk when it is first asked for and keeps the most
+ *  recently used ones whose estimated sizes add up to at most a budget
+ *  of bytes.  Objects are only ever cached after they are stored, so an
+ *  evicted object is simply read again.  The budget of all caches
+ *  together is given by the system property gitlet.cacheSize or the
+ *  environment variable GITLET_CACHE_SIZE (a number of bytes, optionally
+ *  followed by k, m or g), and defaults to a quarter of the maximum
+ *  heap.
+ *  @author Felix Yu
+ */
+class ObjectCache<T> {
+
+    /** A cached object and its estimated size. */
+    private static class Entry<T> {
+        /** The object. */
+        private final T value;
+        /** Its estimated size in bytes. */
+        private final long weight;
+
+        /** An entry for VALUE, whose size is WEIGHT. */
+        Entry(T value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /** A cache holding at most BUDGET bytes of objects, which are read by
+     *  LOADER and whose sizes are estimated by WEIGHER. */
+    ObjectCache(long budget, Function<String, T> loader,
+                ToLongFunction<T> weigher) {
+        this.budget = budget;
+        this.loader = loader;
+        this.weigher = weigher;
+    }
+
+    /** Returns the configured budget of all caches together, in bytes. */
+    static long totalBudget() {
+        return Utils.sizeProperty("gitlet.cacheSize", "GITLET_CACHE_SIZE",
+                                  Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /** Returns the object with ID, reading it if it is not cached. */
+    synchronized T get(String id) {
+        Entry<T> entry = entries.get(id);
+        if (entry == null) {
+            Stats.count(Stats.Counter.CACHE_MISSES, 1);
+            T value = loader.apply(id);
+            put(id, value);
+            return value;
+        }
+        Stats.count(Stats.Counter.CACHE_HITS, 1);
+        return entry.value;
+    }
+
+    /** Caches VALUE, which is stored, as the object with ID. */
+    synchronized void put(String id, T value) {
+        Entry<T> entry = new Entry<>(value, weigher.applyAsLong(value));
+        Entry<T> old = entries.put(id, entry);
+        if (old != null) {
+            total -= old.weight;
+        }
+        total += entry.weight;
+        evict(id);
+    }
+
+    /** Drops the least recently used objects other than the one with KEEP
+     *  until the cache is within its budget. */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry<T>>> it =
+            entries.entrySet().iterator();
+        while (total > budget && it.hasNext()) {
+            Map.Entry<String, Entry<T>> e = it.next();
+            if (!e.getKey().equals(keep)) {
+                total -= e.getValue().weight;
+                it.remove();
+                Stats.count(Stats.Counter.CACHE_EVICTIONS, 1);
+            }
+        }
+    }
+
+    /** The most bytes of objects kept. */
+    private final long budget;
+    /** Reads an object given its id. */
+    private final Function<String, T> loader;
+    /** Estimates the size of an object in bytes. */
+    private final ToLongFunction<T> weigher;
+    /** Cached objects by id, least recently used first. */
+    private final LinkedHashMap<String, Entry<T>> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Estimated size of the cached objects. */
+    private long total;
+}
@@ -0,0 +1,414 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/** A pack of compressed blobs.  The pack file .gitlet/packs/NAME.pack is
+ *  a sequence of entries, each
+ *      type (1 byte: WHOLE or DELTA), [base id (20 bytes) if DELTA],
+ *      raw length (4 bytes), stored length (4 bytes), deflated data
+ *  and NAME.idx is a memory-mapped index over it:
+ *      magic, version, IdTable of the N blob ids, N 8-byte entry offsets
+ *  so a lookup is a binary search within one fan-out bucket.
+ *  @author Felix Yu
+ */
+class Pack {
+
+    /** Entry types. */
+    static final int WHOLE = 0, DELTA = 1;
+
+    /** First int of every index file. */
+    private static final int IDX_MAGIC = 0x67504958;
+    /** Version of the index format. */
+    private static final int IDX_VERSION = 1;
+    /** Byte length of a binary SHA-1 id. */
+    static final int ID_BYTES = IdTable.ID_BYTES;
+
+    /** The direct buffer of the current thread that transferTo inflates
+     *  into. */
+    private static final ThreadLocal<ByteBuffer> OUT_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 16));
+
+    /** The pack data file. */
+    private final File packFile;
+    /** The pack index file. */
+    private final File idxFile;
+    /** The mapped contents of the index. */
+    private final MappedByteBuffer idx;
+    /** The ids of the blobs in this pack. */
+    private final IdTable ids;
+    /** Position in idx of the entry offsets. */
+    private final int offsetsStart;
+    /** Open channel on the pack data. */
+    private final FileChannel data;
+
+    /** Opens the pack whose index is IDXFILE. */
+    Pack(File idxFile) {
+        this.idxFile = idxFile;
+        String name = idxFile.getName();
+        packFile = new File(idxFile.getParentFile(),
+                            name.substring(0, name.length() - 4) + ".pack");
+        try {
+            RandomAccessFile idxIn = new RandomAccessFile(idxFile, "r");
+            idx = idxIn.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                         0, idxIn.length());
+            idxIn.close();
+            if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != IDX_VERSION) {
+                throw Utils.error("Bad pack index %s.", name);
+            }
+            ids = new IdTable(idx, 8);
+            offsetsStart = ids.end();
+            data = new RandomAccessFile(packFile, "r").getChannel();
+        } catch (IOException excp) {
+            throw Utils.error("Cannot open pack %s: %s", name,
+                              excp.getMessage());
+        }
+    }
+
+    /** Returns the number of blobs in this pack. */
+    int size() {
+        return ids.size();
+    }
+
+    /** Returns the hex id of the Kth blob in id order. */
+    String idAt(int k) {
+        return ids.idAt(k);
+    }
+
+    /** Returns true iff this pack contains the blob with hex ID. */
+    boolean contains(String id) {
+        return ids.find(Utils.fromHex(id)) >= 0;
+    }
+
+    /** Returns the contents of the blob with hex ID, or null if it is not
+     *  in this pack. */
+    byte[] read(String id) {
+        int k = ids.find(Utils.fromHex(id));
+        if (k < 0) {
+            return null;
+        }
+        return readEntry(idx.getLong(offsetsStart + k * 8));
+    }
+
+    /** Writes the contents of the blob with ID to OUT, returning false if
+     *  this pack does not hold it.  A whole entry is inflated from a
+     *  memory-mapped region of the pack through a fixed direct buffer, so
+     *  neither its compressed nor its inflated bytes pass through the
+     *  heap; a delta is resolved in memory by read. */
+    boolean transferTo(String id, WritableByteChannel out) throws IOException {
+        int k = ids.find(Utils.fromHex(id));
+        if (k < 0) {
+            return false;
+        }
+        long offset = idx.getLong(offsetsStart + k * 8);
+        ByteBuffer head = ByteBuffer.allocate(1 + 8);
+        data.read(head, offset);
+        head.flip();
+        if (head.get() != WHOLE) {
+            writeFully(out, ByteBuffer.wrap(readEntry(offset)));
+            return true;
+        }
+        head.getInt();
+        int storedLength = head.getInt();
+        Inflater inflater = new Inflater();
+        inflater.setInput(data.map(FileChannel.MapMode.READ_ONLY,
+                                   offset + head.position(), storedLength));
+        ByteBuffer buf = OUT_BUFFER.get();
+        try {
+            while (!inflater.finished()) {
+                buf.clear();
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput()
+                               || inflater.needsDictionary())) {
+                    throw Utils.error("Truncated entry in pack.");
+                }
+                buf.flip();
+                writeFully(out, buf);
+            }
+        } catch (DataFormatException excp) {
+            throw Utils.error("Corrupt entry in pack.");
+        } finally {
+            inflater.end();
+        }
+        return true;
+    }
+
+    /** Writes all of BUF to OUT. */
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf)
+        throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** Returns the index file of this pack. */
+    File indexFile() {
+        return idxFile;
+    }
+
+    /** Closes the pack data channel. */
+    void close() {
+        try {
+            data.close();
+        } catch (IOException excp) {
+            /* Ignore: the pack is only being read. */
+        }
+    }
+
+    /** Deletes the files of this pack. */
+    void delete() {
+        close();
+        idxFile.delete();
+        packFile.delete();
+    }
+
+    /** Returns the contents of the entry at OFFSET in the pack data,
+     *  resolving deltas against their bases. */
+    private byte[] readEntry(long offset) {
+        try {
+            ByteBuffer head = ByteBuffer.allocate(1 + ID_BYTES + 8);
+            data.read(head, offset);
+            head.flip();
+            int type = head.get();
+            byte[] base = null;
+            if (type == DELTA) {
+                base = new byte[ID_BYTES];
+                head.get(base);
+            }
+            int rawLength = head.getInt();
+            int storedLength = head.getInt();
+            ByteBuffer stored = ByteBuffer.allocate(storedLength);
+            data.read(stored, offset + head.position());
+            byte[] inflated = inflate(stored.array(), type == DELTA
+                                      ? -1 : rawLength);
+            if (type == WHOLE) {
+                return inflated;
+            }
+            byte[] baseData = read(Utils.toHex(base));
+            if (baseData == null) {
+                throw Utils.error("Missing delta base in pack %s.",
+                                  packFile.getName());
+            }
+            return Delta.apply(baseData, inflated, rawLength);
+        } catch (IOException excp) {
+            throw Utils.error("Cannot read pack %s: %s", packFile.getName(),
+                              excp.getMessage());
+        }
+    }
+
+    /** Returns the inflated contents of DEFLATED.  LENGTH is the inflated
+     *  length, or -1 if it is unknown. */
+    private static byte[] inflate(byte[] deflated, int length) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated);
+        ByteArrayOutputStream out =
+            new ByteArrayOutputStream(length < 0 ? deflated.length * 2 : length);
+        byte[] buf = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput()
+                               || inflater.needsDictionary())) {
+                    throw Utils.error("Truncated entry in pack.");
+                }
+                out.write(buf, 0, n);
+            }
+        } catch (DataFormatException excp) {
+            throw Utils.error("Corrupt entry in pack.");
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns DATA deflated. */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /** Writes the contents of a blob to a stream. */
+    interface Source {
+        /** Writes the contents to OUT, leaving it open. */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** Writes the entries of a new pack.  The pack data is streamed to a
+     *  temporary file as entries are added, so a pack is never held in
+     *  memory and may pass 2 GiB; only the ids and offsets are kept until
+     *  the index is written.  A writer that is closed before write
+     *  deletes its temporary file. */
+    static class Writer implements AutoCloseable {
+
+        /** Directory the pack is written into. */
+        private final File dir;
+        /** Temporary file holding the pack data written so far. */
+        private final Path tmp;
+        /** Output stream onto tmp. */
+        private final DataOutputStream out;
+        /** Channel onto tmp, used to force it to disk. */
+        private final FileChannel channel;
+        /** Byte length of the pack data written so far. */
+        private long size;
+        /** Hex ids of the entries added so far, in pack order. */
+        private final List<String> ids = new ArrayList<>();
+        /** Offsets of the entries added so far, in pack order. */
+        private final List<Long> offsets = new ArrayList<>();
+
+        /** Starts a new pack in DIR. */
+        Writer(File dir) throws IOException {
+            this.dir = dir;
+            tmp = Files.createTempFile(dir.toPath(), "pack-", ".tmp");
+            channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel), 1 << 16));
+        }
+
+        /** Adds the blob with hex ID and contents CONTENTS.  If BASEID is
+         *  not null it names a blob already added to this pack with
+         *  contents BASE, and CONTENTS is stored as a delta against it if
+         *  that is smaller.  Returns true iff it was stored as a
+         *  delta. */
+        boolean add(String id, byte[] contents, String baseID, byte[] base)
+            throws IOException {
+            offsets.add(size);
+            ids.add(id);
+            byte[] delta = baseID == null ? null
+                : deflate(Delta.create(base, contents));
+            byte[] whole = deflate(contents);
+            if (delta != null && delta.length < whole.length) {
+                out.writeByte(DELTA);
+                out.write(Utils.fromHex(baseID));
+                out.writeInt(contents.length);
+                out.writeInt(delta.length);
+                out.write(delta);
+                size += 1 + ID_BYTES + 8 + delta.length;
+                return true;
+            }
+            out.writeByte(WHOLE);
+            out.writeInt(contents.length);
+            out.writeInt(whole.length);
+            out.write(whole);
+            size += 1 + 8 + whole.length;
+            return false;
+        }
+
+        /** Adds the blob with hex ID whole, deflating the contents that
+         *  SOURCE writes as they are written, so that they are never held
+         *  in memory.  The lengths in the entry's header are filled in
+         *  once the contents are written. */
+        void add(String id, Source source) throws IOException {
+            offsets.add(size);
+            ids.add(id);
+            out.writeByte(WHOLE);
+            out.writeLong(0);
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                /* Finished, not closed, so that out stays open. */
+                DeflaterOutputStream zip =
+                    new DeflaterOutputStream(out, deflater, 1 << 16);
+                source.writeTo(zip);
+                zip.finish();
+                if (deflater.getBytesRead() > Integer.MAX_VALUE) {
+                    throw Utils.error("Blob %s is too large to pack.", id);
+                }
+                out.flush();
+                ByteBuffer lengths = ByteBuffer.allocate(8);
+                lengths.putInt((int) deflater.getBytesRead());
+                lengths.putInt((int) deflater.getBytesWritten());
+                lengths.flip();
+                while (lengths.hasRemaining()) {
+                    channel.write(lengths, size + 1 + lengths.position());
+                }
+                size += 1 + 8 + deflater.getBytesWritten();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /** Installs the pack and its index in DIR, returning the index
+         *  file.  Each is forced to disk and renamed into place, and the
+         *  index is installed last, so a pack without an index is never
+         *  read and an installed index always has its pack whole on
+         *  disk. */
+        File write() throws IOException {
+            out.flush();
+            channel.force(true);
+            out.close();
+            Integer[] order = new Integer[ids.size()];
+            for (int i = 0; i < order.length; i += 1) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> ids.get(a).compareTo(ids.get(b)));
+            ByteArrayOutputStream idxBytes = new ByteArrayOutputStream();
+            DataOutputStream idxOut = new DataOutputStream(idxBytes);
+            StringBuilder allIds = new StringBuilder();
+            List<String> sortedIds = new ArrayList<>();
+            for (int k : order) {
+                sortedIds.add(ids.get(k));
+                allIds.append(ids.get(k));
+            }
+            idxOut.writeInt(IDX_MAGIC);
+            idxOut.writeInt(IDX_VERSION);
+            IdTable.write(idxOut, sortedIds);
+            for (int k : order) {
+                idxOut.writeLong(offsets.get(k));
+            }
+            idxOut.close();
+            String name = "pack-" + Utils.sha1(allIds.toString());
+            File idxFile = Utils.join(dir, name + ".idx");
+            Path idxTmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+            try {
+                Files.move(tmp, Utils.join(dir, name + ".pack").toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                Utils.writeContents(idxTmp.toFile(), idxBytes.toByteArray());
+                Utils.force(idxTmp.toFile());
+                Files.move(idxTmp, idxFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                Utils.force(dir);
+            } finally {
+                Files.deleteIfExists(idxTmp);
+            }
+            return idxFile;
+        }
+
+        /** Deletes the temporary pack data if the pack was not
+         *  installed. */
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/** An exclusive lock on the shared metadata of a repository (the refs,
+ *  HEAD, removals, journal, commit graph and commit index), taken on
+ *  .gitlet/lock with an operating-system file lock so that it is
+ *  released even if its holder dies.  Writers hold it only while they
+ *  check and write back their changes; readers never take it, since
+ *  every file they read is replaced by an atomic rename or only ever
+ *  appended to.  Blobs, trees and commits need no lock: they are named
+ *  by their contents and written by rename, so two processes writing the
+ *  same object write the same bytes.
+ *  @author Felix Yu
+ */
+class RefLock implements AutoCloseable {
+
+    /** The lock file. */
+    static final File LOCK_FILE = Utils.join(Main.gitletDir, "lock");
+
+    /** The open lock file. */
+    private final FileChannel channel;
+    /** The lock on it, or null if it was not acquired. */
+    private final FileLock lock;
+
+    /** Opens the lock file and locks it, waiting for any other holder iff
+     *  WAIT. */
+    private RefLock(boolean wait) {
+        try {
+            channel = FileChannel.open(LOCK_FILE.toPath(),
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE);
+            lock = wait ? channel.lock() : channel.tryLock();
+            if (lock == null) {
+                channel.close();
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Cannot lock repository: %s", excp.getMessage());
+        }
+    }
+
+    /** Returns the lock, waiting until no other process holds it. */
+    static RefLock acquire() {
+        return new RefLock(true);
+    }
+
+    /** Returns the lock, or null if another process holds it. */
+    static RefLock tryAcquire() {
+        RefLock result = new RefLock(false);
+        return result.lock == null ? null : result;
+    }
+
+    @Override
+    public void close() {
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException excp) {
+            throw Utils.error("Cannot unlock repository: %s",
+                              excp.getMessage());
+        }
+    }
+}
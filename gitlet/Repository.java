@@ -1,210 +1,532 @@
 package gitlet;
 
-import edu.neu.ccs.util.FileUtilities;
-
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Objects;
+import java.util.TreeSet;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Formatter;
-import java.util.Date;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.function.IntSupplier;
+
+public class Repository {
+
+    /** Recently used commits, keyed by ID. */
+    private final ObjectCache<Commit> commits =
+        new ObjectCache<>(ObjectCache.totalBudget() / 2, Commit::read,
+                          Commit::weight);
 
-public class Repository implements Serializable {
+    /** Format of the dates printed by log. */
+    private static final DateTimeFormatter LOG_DATE =
+        DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z")
+        .withZone(ZoneId.systemDefault());
 
-    /** A map from commits’ IDs to the commit objects. */
-    private HashMap<String, Commit> commits;
+    /** The refs, HEAD and removals of this repository. */
+    private final MetaStore store = new MetaStore();
 
-    /** The SHA-1 hash id of the current commit. */
-    private String head;
+    /** The stat cache of file ids, or null if not read yet. */
+    private Index index;
 
-    /** A map from branch name to its current commit SHA-1 hash. */
-    private HashMap<String, String> branches;
+    /** The index of commit ids, or null if not read yet. */
+    private CommitIndex commitIndex;
 
-    /** The current branch committing to in this repo.*/
-    private String currentBranch;
+    /** The commit graph, or null if not read yet. */
+    private CommitGraph commitGraph;
 
-    /** Arraylist of the file SHA-1 removals made by -rm. */
-    private ArrayList<String> removals;
+    /** The index of commit messages and dates, or null if not read yet. */
+    private MessageIndex messageIndex;
 
-    public Repository() throws IOException {
-        removals = new ArrayList<>();
-        branches = new HashMap<>();
-        commits = new HashMap<>();
+    /** The filters of changed paths, or null if not read yet. */
+    private PathFilters pathFilters;
+
+    /** Creates the initial commit of a new repository on branch master.
+     *  The .gitlet directories must already exist. */
+    public void init() throws IOException {
+        MetaStore.create();
+        commitIndex();
         Commit firstCommit = new Commit();
         firstCommit.setFirstCommitDate();
         firstCommit.addParent("");
         firstCommit.setMessage("initial commit");
         firstCommit.actCommit();
-        String shaID = Utils.sha1(Utils.serialize(firstCommit.returnHashList()));
-        firstCommit.setSha_id(shaID);
-        File firstCommitFile = Utils.join(Main.commits, firstCommit.getSHA_ID());
-        Utils.writeContents(firstCommitFile, Utils.serialize(firstCommit));
-        branches.put("master", firstCommit.getSHA_ID());
+        firstCommit.setTree(Tree.update(null, new HashMap<>(), true));
+        firstCommit.write();
         commits.put(firstCommit.getSHA_ID(), firstCommit);
-        head = firstCommit.getSHA_ID();
-        currentBranch = "master";
-    }
-
-    public void add(String fileName) throws IOException {
-        File workingDirFile = new File(fileName);
-        File gitletFile = Utils.join(Main.stagingDir, fileName);
-        if (!workingDirFile.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(1);
-        } else if (gitletFile.exists()) {
-            String stringW = Utils.readContentsAsString(workingDirFile);
-            String stringG = Utils.readContentsAsString(gitletFile);
-            if (!Utils.sha1(stringW).equals(Utils.sha1(stringG))) {
-                Utils.restrictedDelete(gitletFile);
-                Files.copy(workingDirFile.toPath(), Main.stagingDir.toPath());
+        record(firstCommit);
+        store.writeRef("master", firstCommit.getSHA_ID());
+        store.setCurrentBranch("master");
+    }
+
+    /** Writes back the metadata records this command changed.  The refs
+     *  are written last, so that a crash never leaves a ref naming a
+     *  commit that the commit graph and index do not have.  The shared
+     *  records are written under the RefLock, which is not taken if there
+     *  is nothing to write. */
+    public void save() {
+        if (index != null) {
+            index.save();
+        }
+        boolean graphChanged = commitGraph != null && commitGraph.changed();
+        if (!graphChanged && !store.changed()) {
+            return;
+        }
+        try (RefLock lock = RefLock.acquire()) {
+            if (graphChanged) {
+                int shift = commitGraph.save();
+                commitIndex.save(shift);
+                messageIndex().save();
+                pathFilters().save();
+            }
+            store.flush();
+        }
+    }
+
+    /** Forgets the HEAD, refs and removals that another process changed
+     *  since this repository read them, so that a repository kept open
+     *  across commands does not act on stale values (see
+     *  MetaStore.refresh). */
+    void refresh() {
+        store.refresh();
+    }
+
+    /** Returns the index of commit ids, opening it on first use. */
+    private CommitIndex commitIndex() {
+        if (commitIndex == null) {
+            try (Stats.Phase phase = Stats.phase("read commit-index")) {
+                commitIndex = new CommitIndex(commitGraph());
+            }
+        }
+        return commitIndex;
+    }
+
+    /** Returns the index of commit messages, opening it on first use. */
+    private MessageIndex messageIndex() {
+        if (messageIndex == null) {
+            try (Stats.Phase phase = Stats.phase("read message-index")) {
+                messageIndex = new MessageIndex(commitGraph(), this::getCommit);
+            }
+        }
+        return messageIndex;
+    }
+
+    /** Returns the filters of changed paths, opening them on first
+     *  use. */
+    private PathFilters pathFilters() {
+        if (pathFilters == null) {
+            try (Stats.Phase phase = Stats.phase("read path-filters")) {
+                pathFilters = new PathFilters(commitGraph(), this::getCommit);
+            }
+        }
+        return pathFilters;
+    }
+
+    /** Returns the commit graph, opening it on first use. */
+    private CommitGraph commitGraph() {
+        if (commitGraph == null) {
+            try (Stats.Phase phase = Stats.phase("read commit-graph")) {
+                commitGraph = new CommitGraph(this::getCommit);
+            }
+        }
+        return commitGraph;
+    }
+
+    /** Returns the commit graph position of the commit with full ID, or
+     *  -1 if there is no such commit.  A commit missing from the graph may
+     *  have been made by another process since the graph was read, so
+     *  unless this command has added commits of its own, the graph and
+     *  index are read again before giving up. */
+    private int position(String id) {
+        int pos = commitIndex().position(id);
+        if (pos < 0 && !commitGraph.changed()) {
+            commitGraph = null;
+            commitIndex = null;
+            messageIndex = null;
+            pathFilters = null;
+            pos = commitIndex().position(id);
+        }
+        return pos;
+    }
+
+    /** Adds the newly written commit C to the commit graph and index. */
+    private void record(Commit c) {
+        List<String> parents = c.getParent();
+        int parent1 = parents.get(0).isEmpty() ? -1 : position(parents.get(0));
+        int parent2 = parents.size() > 1 ? position(parents.get(1)) : -1;
+        int pos = commitGraph().add(c.getSHA_ID(), parent1, parent2,
+                                    c.getCommitDate().getTime());
+        commitIndex().add(c.getSHA_ID(), pos);
+    }
+
+    /** Returns the stat cache, reading it on first use. */
+    private Index index() {
+        if (index == null) {
+            try (Stats.Phase phase = Stats.phase("read index")) {
+                index = Index.load();
             }
-        } else {
-            Files.copy(workingDirFile.toPath(), gitletFile.toPath());
+        }
+        return index;
+    }
+
+    /** Returns the commit with the full ID ID, reading it from
+     *  .gitlet/commits unless it was used recently. */
+    public Commit getCommit(String id) {
+        return commits.get(id);
+    }
+
+    /** Returns the SHA-1 hash id of the current commit. */
+    private String head() {
+        return store.readRef(store.currentBranch());
+    }
+
+    /** Returns FILENAME as a path relative to the working directory,
+     *  with '/' as separator. */
+    static String normalize(String fileName) {
+        Path cwd = Main.CWD.toPath().toAbsolutePath().normalize();
+        Path path = Paths.get(fileName).toAbsolutePath().normalize();
+        return cwd.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /** Stages each of FILENAMES, and every file under those that are
+     *  directories, hashing and copying them on the worker threads.
+     *  Nothing is staged if any of them is missing. */
+    public void add(String... fileNames) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (String fileName : fileNames) {
+            String path = normalize(fileName);
+            File file = new File(fileName);
+            if (file.isDirectory()) {
+                paths.addAll(workingFiles(path));
+            } else if (file.exists()) {
+                paths.add(path);
+            } else {
+                reportError("File does not exist.");
+            }
+        }
+        Index cache = index();
+        Map<String, String> tracked = getCommit(head()).getBlobs();
+        Set<String> staged =
+            new HashSet<>(Utils.plainFilesUnder(Main.stagingDir));
+        try (Stats.Phase phase = Stats.phase("hash")) {
+            Workers.map(paths.size(), k -> {
+                add(cache, tracked, staged, paths.get(k));
+                return null;
+            });
+        }
+        if (store.removals().removeAll(paths)) {
+            store.removalsChanged();
+        }
+    }
+
+    /** Stages PATH, which exists, using CACHE to compare it with an
+     *  already staged copy and with its id in TRACKED, the files of the
+     *  current commit.  STAGED holds the paths already staged.  A file
+     *  identical to the current commit's version is unstaged instead. */
+    private void add(Index cache, Map<String, String> tracked,
+                     Set<String> staged, String path) throws IOException {
+        File workingDirFile = new File(path);
+        File gitletFile = Utils.join(Main.stagingDir, path);
+        String id = cache.hash(workingDirFile);
+        if (id.equals(tracked.get(path))) {
+            if (staged.contains(path) && gitletFile.delete()) {
+                cache.forget(gitletFile);
+            }
+        } else if (!staged.contains(path)
+                   || !id.equals(cache.hash(gitletFile))) {
+            stage(path);
         }
     }
 
     public void commit(String msg) throws IOException {
-        String[] fileNames = Main.stagingDir.list();
-        if (fileNames.length == 0) {
+        commit(msg, null);
+    }
+
+    /** Commits the staged files and removals with message MSG.  If
+     *  SECONDPARENT is not null, it is the id of the second parent of a
+     *  merge commit. */
+    private void commit(String msg, String secondParent) throws IOException {
+        List<String> removals = store.removals();
+        if (Utils.plainFilesUnder(Main.stagingDir).isEmpty()
+            && removals.isEmpty()) {
             reportError("No changes added to the commit.");
         }
+        commitIndex();
         Commit newCommit = new Commit();
-        newCommit.addParent(head);
+        newCommit.addParent(head());
+        if (secondParent != null) {
+            newCommit.addParent(secondParent);
+        }
         newCommit.setMessage(msg);
-        newCommit.actCommit();
-        byte[] stream = Utils.serialize(newCommit.returnHashList());
-        compareWithParent(newCommit);
-        String shaID = Utils.sha1(stream);
-        newCommit.setSha_id(shaID);
-        File newCommitFile = Utils.join(Main.commits, shaID);
-        Utils.writeContents(newCommitFile, Utils.serialize(newCommit));
+        HashMap<String, String> staged = newCommit.actCommit();
+        HashMap<String, String> changes = new HashMap<>(staged);
+        for (String file : removals) {
+            changes.put(file, null);
+        }
+        newCommit.setTree(Tree.update(getCommit(head()).getTree(), changes,
+                                      true));
+        newCommit.write();
         commits.put(newCommit.getSHA_ID(), newCommit);
-        head = newCommit.getSHA_ID();
-        branches.put(currentBranch, head);
-        newCommit.clearStage();
-        removals.clear();
+        record(newCommit);
+        store.writeRef(store.currentBranch(), newCommit.getSHA_ID());
+        store.removals().clear();
+        store.removalsChanged();
+        // the staged files are only dropped once the new ref is written,
+        // so a commit refused because another process moved the branch
+        // can be retried
+        save();
+        unstage(staged);
     }
 
-    /** Puts unchanged staged blobs from the parent commit into the NEWCOMMIT. */
-    public void compareWithParent(Commit newCommit) {
-        Commit parentCommit = commits.get(newCommit.getParent().get(0));
-        List<String> fileNames = Arrays.asList(Main.stagingDir.list());
-        for (String file : parentCommit.getBlobs().keySet()) {
-            //if file is not staged for removal and not in staging directory
-            if (!removals.contains(file) && !fileNames.contains(file)) {
-                //copies files that are unchanged from previous commit
-                String fileID = parentCommit.getBlobs().get(file);
-//                File parent = Utils.join(Main.blobs, file);
-//                File newFile = Utils.join(Main.stagingDir, fileID);
-//                if (sameContent(parent, newFile)) {
-//                    newCommit.getBlobs().put(file, parentCommit.getBlobs().get(file));
-//                }
-                newCommit.getBlobs().put(file, file);
+    /** Deletes from the staging area each file in STAGED, a map from
+     *  staged paths to the blob ids just committed for them, whose
+     *  contents are still that blob, along with its index entry and
+     *  any staging directories left empty.  A file staged by another
+     *  process since the commit listed the staging area stays staged. */
+    private void unstage(Map<String, String> staged) {
+        for (Map.Entry<String, String> entry : staged.entrySet()) {
+            File file = Utils.join(Main.stagingDir, entry.getKey());
+            if (file.isFile() && Utils.sha1(file).equals(entry.getValue())) {
+                deleteStaged(file);
             }
         }
     }
 
+    /** Deletes the staged file FILE, along with its index entry and any
+     *  staging directories left empty. */
+    private void deleteStaged(File file) {
+        file.delete();
+        index().forget(file);
+        File dir = file.getParentFile();
+        while (!dir.equals(Main.stagingDir) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
     public void remove(String fileName) {
-        //TODO  most likely a bug in here
+        fileName = normalize(fileName);
         File stageDirFile = Utils.join(Main.stagingDir, fileName);
-        Commit currentCommit = commits.get(head);
+        Commit currentCommit = getCommit(head());
         boolean tracked = currentCommit.getBlobs().containsKey(fileName);
         boolean staged = stageDirFile.exists();
         if (!tracked && !staged) {
             reportError("No reason to remove the file.");
         }
         if (staged) {
-            stageDirFile.delete();
+            deleteStaged(stageDirFile);
         }
         if (tracked) {
-            removals.add(fileName);
-            File workingDirFile = new File(fileName);
-            if (workingDirFile.exists()) {
-                workingDirFile.delete();
-            }
+            store.removals().add(fileName);
+            store.removalsChanged();
+            deleteWorkingFile(fileName);
         }
     }
 
-    public void log() {
-        //TODO merge stuff
-        String currentString = head;
-        while (!currentString.equals("")) {
-            Commit theCommit = commits.get(currentString);
-            currentString = theCommit.getParent().get(0);
-            logPrint(theCommit);
-        }
+    /** Prints the commits from the head back along first parents that
+     *  OPTIONS selects, walking the commit graph. */
+    public void log(LogOptions options) throws IOException {
+        int[] next = { position(head()) };
+        CommitGraph graph = commitGraph();
+        printLog(() -> {
+            int pos = next[0];
+            if (pos >= 0) {
+                next[0] = graph.parent(pos, 0);
+            }
+            return pos;
+        }, options);
     }
 
-    public void logPrint(Commit theCommit) {
-        System.out.println("===");
-        System.out.println("commit " + theCommit.getSHA_ID());
-        Formatter fmt = new Formatter();
-        Date d = theCommit.getCommitDate();
-        fmt.format("Date: %ta %tb %te %tT %tY %tz", d, d, d, d, d, d);
-        System.out.println(fmt);
-        System.out.println(theCommit.getMessage());
-        System.out.println("");
+    /** Prints every commit reachable from a branch that OPTIONS selects,
+     *  once each, newest first.  The branch tips start a priority queue
+     *  ordered by commit time; each commit taken from it adds its parents,
+     *  so commits shared by several branches are visited once. */
+    public void globalLog(LogOptions options) throws IOException {
+        List<Integer> tips = new ArrayList<>();
+        for (String branch : store.branchNames()) {
+            tips.add(position(store.readRef(branch)));
+        }
+        CommitGraph graph = commitGraph();
+        BitSet queued = new BitSet(graph.size());
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> {
+            int c = Long.compare(graph.time(b), graph.time(a));
+            return c != 0 ? c : Integer.compare(b, a);
+        });
+        for (int pos : tips) {
+            if (pos >= 0 && !queued.get(pos)) {
+                queued.set(pos);
+                queue.add(pos);
+            }
+        }
+        printLog(() -> {
+            if (queue.isEmpty()) {
+                return -1;
+            }
+            int pos = queue.poll();
+            for (int which = 0; which < 2; which += 1) {
+                int parent = graph.parent(pos, which);
+                if (parent >= 0 && !queued.get(parent)) {
+                    queued.set(parent);
+                    queue.add(parent);
+                }
+            }
+            return pos;
+        }, options);
     }
 
-    public void globalLog() {
-        HashSet<String> commitIDs = new HashSet<>();
-        for (String branch : branches.keySet()) {
-            String currentString = branches.get(branch);
-            while (!currentString.equals("")) {
-                Commit theCommit = commits.get(currentString);
-                currentString = theCommit.getParent().get(0);
-                if (!commitIDs.contains(theCommit)) {
-                    currentString = theCommit.getParent().get(0);
-                    logPrint(theCommit);
+    /** Prints the commits at the positions given by WALK, which returns -1
+     *  at the end, that OPTIONS selects.  WALK must give commits newest
+     *  first, so the walk stops at the first commit older than
+     *  options.since or once options.limit commits are printed.  Entries
+     *  are built from the commit graph and message index, without reading
+     *  commits, and written through one buffer. */
+    private void printLog(IntSupplier walk, LogOptions options)
+        throws IOException {
+        CommitGraph graph = commitGraph();
+        BitSet selected = options.grep == null ? null
+            : messageIndex().search(options.grep, false, Long.MIN_VALUE,
+                                    Long.MAX_VALUE);
+        List<String> paths = new ArrayList<>();
+        for (String path : options.paths) {
+            paths.add(normalize(path));
+        }
+        Writer out = new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+            1 << 16);
+        try {
+            int printed = 0;
+            for (int pos = walk.getAsInt(); pos >= 0 && printed < options.limit;
+                 pos = walk.getAsInt()) {
+                long time = graph.time(pos);
+                if (time < options.since) {
+                    break;
+                }
+                if (time > options.until
+                    || selected != null && !selected.get(pos)
+                    || !paths.isEmpty() && !changes(pos, paths)) {
+                    continue;
+                }
+                out.write("===\ncommit ");
+                out.write(graph.idAt(pos));
+                out.write('\n');
+                int parent2 = graph.parent(pos, 1);
+                if (parent2 >= 0) {
+                    out.write("Merge: ");
+                    out.write(graph.idAt(graph.parent(pos, 0)), 0, 7);
+                    out.write(' ');
+                    out.write(graph.idAt(parent2), 0, 7);
+                    out.write('\n');
                 }
-                commitIDs.add(theCommit.getSHA_ID());
+                out.write("Date: ");
+                LOG_DATE.formatTo(Instant.ofEpochMilli(time), out);
+                out.write('\n');
+                out.write(messageIndex().message(pos));
+                out.write("\n\n");
+                printed += 1;
             }
+        } finally {
+            out.flush();
         }
     }
 
-    public void find(String msg) {
-        HashSet<String> commitIDs = new HashSet<>();
-        for (String branch : branches.keySet()) {
-            String currentString = branches.get(branch);
-            while (!currentString.equals("")) {
-                Commit theCommit = commits.get(currentString);
-                if (theCommit.getMessage().equals(msg)) {
-                    commitIDs.add(currentString);
-                }
-                currentString = theCommit.getParent().get(0);
+    /** Returns true iff the commit at POS changes a file or directory in
+     *  PATHS from its first parent.  Commits whose path filters rule out
+     *  every path are not read; the others are checked against their
+     *  trees. */
+    private boolean changes(int pos, List<String> paths) {
+        CommitGraph graph = commitGraph();
+        PathFilters filters = pathFilters();
+        String tree = null, parentTree = null;
+        boolean read = false;
+        for (String path : paths) {
+            if (!path.isEmpty() && !filters.mayChange(pos, path)) {
+                Stats.count(Stats.Counter.FILTER_SKIPS, 1);
+                continue;
+            }
+            if (!read) {
+                tree = getCommit(graph.idAt(pos)).getTree();
+                int parent = graph.parent(pos, 0);
+                parentTree = parent < 0 ? null
+                    : getCommit(graph.idAt(parent)).getTree();
+                read = true;
+            }
+            if (!Objects.equals(Tree.entry(tree, path),
+                                Tree.entry(parentTree, path))) {
+                return true;
+            }
+            if (!path.isEmpty() && filters.covers(pos)) {
+                Stats.count(Stats.Counter.FILTER_FALSE_POSITIVES, 1);
             }
         }
-        if (commitIDs.isEmpty()) {
+        return false;
+    }
+
+    /** Prints the ids of all commits whose message is MSG, newest
+     *  first. */
+    public void find(String msg) {
+        printFound(messageIndex().search(msg, true, Long.MIN_VALUE,
+                                         Long.MAX_VALUE), Integer.MAX_VALUE);
+    }
+
+    /** Prints the ids of all commits that OPTIONS selects, newest
+     *  first. */
+    public void find(LogOptions options) {
+        printFound(messageIndex().search(options.grep, false, options.since,
+                                         options.until), options.limit);
+    }
+
+    /** Prints the ids of the commits at the positions in FOUND, from the
+     *  last position to the first, stopping after LIMIT of them. */
+    private void printFound(BitSet found, int limit) {
+        if (found.isEmpty()) {
             reportError("Found no commit with that message.");
         }
-        for (String commitID : commitIDs) {
-            System.out.println(commitID);
+        CommitGraph graph = commitGraph();
+        for (int pos = found.length() - 1; pos >= 0 && limit > 0;
+             pos = found.previousSetBit(pos - 1)) {
+            System.out.println(graph.idAt(pos));
+            limit -= 1;
         }
     }
 
     public void checkoutFile(String fileName) throws IOException {
-        File workingDirFile = new File(fileName);
-        Commit currentCommit = commits.get(head);
-        //TODO
-        File commitDir = Utils.join(Main.blobs, currentCommit.getBlobs().get(fileName));
-        Utils.restrictedDelete(workingDirFile);
-        Files.copy(commitDir.toPath(), workingDirFile.toPath());
+        checkoutFileHelper(getCommit(head()), fileName);
     }
 
+    /** Returns the commit whose id is or starts with COMMITID, or null
+     *  if there is none, as for an empty or non-hex COMMITID.  Reports an
+     *  error if COMMITID is ambiguous. */
     public Commit commitExists(String commitID) {
-        int length = commitID.length();
-        for (String commit : commits.keySet()) {
-            boolean t = commit.equals(commitID);
-            if (commit.substring(0, length).equals(commitID) || t) {
-                return commits.get(commit);
-            }
+        if (!commitID.matches("[0-9a-fA-F]+")) {
+            return null;
+        }
+        List<String> matches = commitIndex().resolve(commitID, 2);
+        if (matches.isEmpty()) {
+            return null;
+        } else if (matches.size() > 1) {
+            reportError("Ambiguous commit id.");
         }
-        return null;
+        return getCommit(matches.get(0));
     }
 
     public void checkoutFile(String commitID, String fileName) throws IOException {
@@ -216,64 +538,88 @@ public class Repository implements Serializable {
     }
 
     public void checkoutFileHelper(Commit theCommit, String fileName) throws IOException {
-        File workingDirFile = new File(fileName);
-        File commitDir = Utils.join(Main.blobs, theCommit.getBlobs().get(fileName));
-        if (!commitDir.exists()) {
+        String path = normalize(fileName);
+        String fileID = theCommit.getBlobs().get(path);
+        if (fileID == null || !BlobStore.contains(fileID)) {
             reportError("File does not exist in that commit.");
         }
-        Utils.restrictedDelete(workingDirFile);
-        Files.copy(commitDir.toPath(), workingDirFile.toPath());
+        writeWorkingFile(path, fileID);
+    }
+
+    /** Writes the blob with FILEID to PATH in the working directory,
+     *  creating its directory if needed.  The blob is written to a
+     *  temporary file beside PATH and renamed over it, so PATH never holds
+     *  a partly written file. */
+    private void writeWorkingFile(String path, String fileID) throws IOException {
+        File workingDirFile = new File(path);
+        File parent = workingDirFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        Path tmp = Files.createTempFile(parent.toPath(), ".gitlet-", ".tmp");
+        try {
+            BlobStore.copyTo(fileID, tmp.toFile());
+            Files.move(tmp, workingDirFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        index().forget(workingDirFile);
+    }
+
+    /** Deletes PATH from the working directory, along with any of its
+     *  directories that become empty. */
+    private void deleteWorkingFile(String path) {
+        File file = new File(path);
+        file.delete();
+        index().forget(file);
+        File dir = file.getParentFile();
+        while (dir != null && dir.delete()) {
+            dir = dir.getParentFile();
+        }
     }
 
     public void checkoutBranch(String branchName) throws IOException {
-        if (branchName.equals(currentBranch)) {
+        String branchHead = store.readRef(branchName);
+        if (branchName.equals(store.currentBranch())) {
             reportError("No need to checkout the current branch.");
-        } else if (!branches.containsKey(branchName)) {
+        } else if (branchHead == null) {
             reportError("No such branch exists.");
         }
-        Commit checkedCommit = commits.get(branches.get(branchName));
-        Commit current = commits.get(head);
-        // deletes any files that are tracked by current
-//        for (String fileName : current.getBlobs().keySet()) {
-//            //if a file is tracked in current and also in checkBranch
-////            if (checkedCommit.getBlobs().containsKey(fileName)) {
-////                Utils.restrictedDelete(new File(current.getBlobs().get(fileName)));
-////            }
-//            File deletedFile = new File(fileName);
-//            deletedFile.delete();
-//        }
-        // deletes any files that are in working directory and rewrite
-        for (String fileName : checkedCommit.getBlobs().keySet()) {
-            String fileID = checkedCommit.getBlobs().get(fileName);
-            File workingDir = Utils.join(Main.CWD, fileName);
-            File commitDir = Utils.join(Main.blobs, fileID);
-//            workingDir.delete();
-            if (workingDir.exists()) {
-                workingDir.delete();
-            }
-            Files.copy(commitDir.toPath(), workingDir.toPath());
-        }
-        //filenames of working directory
-        List<String> fileNames = Arrays.asList(Main.CWD.list());
-        for (String fileName : fileNames) {
-            if (!fileName.equals(".gitlet") && !checkedCommit.getBlobs().containsKey(fileName)) {
-                File toBeDeleted = new File(fileName);
-                toBeDeleted.delete();
-            }
-        }
-        currentBranch = branchName;
-        head = checkedCommit.getSHA_ID();
+        Commit checkedCommit = getCommit(branchHead);
+        switchTo(getCommit(head()), checkedCommit);
+        store.setCurrentBranch(branchName);
         checkedCommit.clearStage();
-        removals.clear();
+        store.removals().clear();
+        store.removalsChanged();
+    }
+
+    /** Returns the paths of the plain files under the directory PATH, a
+     *  normalized path ("" for the working directory), sorted.  They are
+     *  taken from the FsMonitor if one runs, so that only the paths it
+     *  saw change are looked at. */
+    private SortedSet<String> workingFiles(String path) {
+        FsMonitor monitor = FsMonitor.get();
+        if (monitor != null) {
+            SortedSet<String> files = monitor.files();
+            return path.isEmpty() ? files
+                : files.subSet(path + "/", path + "0");
+        }
+        TreeSet<String> result = new TreeSet<>();
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (String sub : Utils.plainFilesUnder(
+                 path.isEmpty() ? Main.CWD : new File(path))) {
+            result.add(prefix + sub);
+        }
+        return result;
     }
 
     /** Status up for this repository on branches and files. */
     public void status() {
-        Commit currentCommit = commits.get(head);
-        //TODO need to sort
+        Commit currentCommit = getCommit(head());
+        List<String> removals = store.removals();
         System.out.println("=== Branches ===");
-        for (String branch : branches.keySet()) {
-            if (branch.equals(currentBranch)) {
+        for (String branch : store.branchNames()) {
+            if (branch.equals(store.currentBranch())) {
                 System.out.println("*" + branch);
             } else {
                 System.out.println(branch);
@@ -281,9 +627,9 @@ public class Repository implements Serializable {
         }
         System.out.println();
         System.out.println("=== Staged Files ===");
-        String[] fileNames = Main.stagingDir.list();
-        for (int i = 0; i < fileNames.length; i++) {
-            System.out.println(fileNames[i]);
+        List<String> fileNames = Utils.plainFilesUnder(Main.stagingDir);
+        for (String fileName : fileNames) {
+            System.out.println(fileName);
         }
         System.out.println();
         System.out.println("=== Removed Files ===");
@@ -292,20 +638,24 @@ public class Repository implements Serializable {
         }
         System.out.println();
         System.out.println("=== Modifications Not Staged For Commit ===");
-        HashMap<String, String> modifications = new HashMap<>();
-        for (String fileName : currentCommit.getBlobs().keySet()) {
+        TreeMap<String, String> modifications = new TreeMap<>();
+        SortedSet<String> working = workingFiles("");
+        Set<String> staged = new HashSet<>(fileNames);
+        for (Map.Entry<String, String> blob
+                 : currentCommit.getBlobs().entrySet()) {
+            String fileName = blob.getKey();
             File workingDirFile = new File(fileName);
             File stageDirFile = Utils.join(Main.stagingDir, fileName);
-            File blobDir = Utils.join(Main.blobs, currentCommit.getBlobs().get(fileName));
-            if (stageDirFile.exists()) {
-                if (!workingDirFile.exists()) {
+            String blobID = blob.getValue();
+            if (staged.contains(fileName)) {
+                if (!working.contains(fileName)) {
                     modifications.put(fileName, "(deleted)");
                 } else if (!sameContent(workingDirFile, stageDirFile)){
                     modifications.put(fileName, "(modified)");
                 }
             } else {
-                if (workingDirFile.exists()) {
-                    if (!sameContent(workingDirFile, blobDir)) {
+                if (working.contains(fileName)) {
+                    if (!sameContent(workingDirFile, blobID)) {
                         modifications.put(fileName, "(modified)");
                     }
                 } else {
@@ -321,13 +671,11 @@ public class Repository implements Serializable {
         System.out.println();
         System.out.println("=== Untracked Files ===");
         ArrayList<String> untracked = new ArrayList<>();
-        String[] currDirNames = Main.CWD.list();
-        for (int i = 0; i > currDirNames.length; i++) {
-            File stageDirFile = Utils.join(Main.stagingDir, fileNames);
-            if (!stageDirFile.exists()) {
-                if (!currentCommit.getBlobs().containsKey(currDirNames[i])) {
-                    untracked.add(currDirNames[i]);
-                }
+        Map<String, String> tracked = currentCommit.getBlobs();
+        for (String fileName : working) {
+            if (!staged.contains(fileName)
+                && !tracked.containsKey(fileName)) {
+                untracked.add(fileName);
             }
         }
         for (String fileName : untracked) {
@@ -336,52 +684,372 @@ public class Repository implements Serializable {
         System.out.println();
     }
 
+    /** Returns true iff FILE1 and FILE2 have the same contents, using
+     *  the stat cache to avoid rehashing unchanged files. */
     public boolean sameContent(File file1, File file2) {
-        String string1 = Utils.readContentsAsString(file1);
-        String string2 = Utils.readContentsAsString(file2);
-        if (Utils.sha1(string1).equals(Utils.sha1(string2))) {
-            return true;
+        return index().hash(file1).equals(index().hash(file2));
+    }
+
+    /** Returns true iff the contents of FILE are the blob with BLOBID. */
+    public boolean sameContent(File file, String blobID) {
+        return index().hash(file).equals(blobID);
+    }
+
+    /** Prints, as unified diffs, the differences selected by OPERANDS:
+     *  none for the working directory against the staging area (or the
+     *  head commit for files not staged), "--staged" for the staging area
+     *  against the head commit, one commit id for the working directory
+     *  against that commit, and two for the differences between two
+     *  commits.  Files whose blob ids are equal are skipped unread, and
+     *  commits are compared tree by tree. */
+    public void diff(String... operands) throws IOException {
+        Commit head = getCommit(head());
+        List<String> staged = Utils.plainFilesUnder(Main.stagingDir);
+        List<String> removals = store.removals();
+        TreeMap<String, Object[]> versions = new TreeMap<>();
+        if (operands.length == 2) {
+            Commit from = diffCommit(operands[0]), to = diffCommit(operands[1]);
+            TreeMap<String, String> changes = new TreeMap<>();
+            Tree.diff(from.getTree(), to.getTree(), "", changes);
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                versions.put(change.getKey(), new Object[] {
+                    Tree.find(from.getTree(), change.getKey()),
+                    change.getValue() });
+            }
+        } else if (operands.length == 1 && operands[0].equals("--staged")) {
+            for (String path : staged) {
+                versions.put(path, new Object[] {
+                    head.getBlobs().get(path),
+                    Utils.join(Main.stagingDir, path) });
+            }
+            for (String path : removals) {
+                versions.put(path, new Object[] {
+                    head.getBlobs().get(path), null });
+            }
+        } else {
+            Commit base = operands.length == 1 ? diffCommit(operands[0])
+                : head;
+            TreeSet<String> paths = new TreeSet<>(base.getBlobs().keySet());
+            paths.addAll(head.getBlobs().keySet());
+            paths.addAll(staged);
+            if (operands.length == 0) {
+                paths.removeAll(removals);
+            }
+            for (String path : paths) {
+                File stagedFile = Utils.join(Main.stagingDir, path);
+                File working = new File(path);
+                Object old = operands.length == 0 && stagedFile.isFile()
+                    ? stagedFile : base.getBlobs().get(path);
+                versions.put(path, new Object[] {
+                    old, working.isFile() ? working : null });
+            }
         }
-        return false;
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        for (Map.Entry<String, Object[]> e : versions.entrySet()) {
+            Object old = e.getValue()[0], now = e.getValue()[1];
+            if (!Objects.equals(versionID(old), versionID(now))) {
+                Diff.print(e.getKey(), versionContents(old),
+                           versionContents(now), out);
+            }
+        }
+        out.flush();
+    }
+
+    /** Returns the commit with id or id prefix ID, reporting an error if
+     *  there is none. */
+    private Commit diffCommit(String id) {
+        Commit result = commitExists(id);
+        if (result == null) {
+            reportError("No commit with that id exists.");
+        }
+        return result;
+    }
+
+    /** Returns the blob id of VERSION, which is a blob id, a file or null
+     *  for a missing file. */
+    private String versionID(Object version) {
+        return version instanceof File ? index().hash((File) version)
+            : (String) version;
+    }
+
+    /** Returns the contents of VERSION, which is a blob id, a file or null
+     *  for a missing file. */
+    private byte[] versionContents(Object version) {
+        if (version instanceof File) {
+            return Utils.readContents((File) version);
+        }
+        return version == null ? null : BlobStore.read((String) version);
+    }
+
+    /** Converts a repository made by the first release of gitlet (see
+     *  Legacy) to the current format, keeping the ids of its commits.
+     *  Each serialized commit is rewritten in the binary format, after
+     *  its first parent, with a tree built from its map of blobs; then
+     *  HEAD, the refs and the removals are written from .gitlet/repo,
+     *  which is deleted last.  A migration cut short is completed by
+     *  running migrate again, and a repository already in the current
+     *  format is left alone. */
+    public void migrate() throws IOException {
+        HashMap<String, Legacy.OldCommit> old = new HashMap<>();
+        for (String id : Utils.plainFilenamesIn(Main.commits)) {
+            File file = Utils.join(Main.commits, id);
+            if (Legacy.isSerialized(file)) {
+                old.put(id, Legacy.readCommit(file));
+            }
+        }
+        int count = old.size();
+        ArrayDeque<String> work = new ArrayDeque<>(old.keySet());
+        while (!work.isEmpty()) {
+            Legacy.OldCommit commit = old.get(work.peek());
+            if (commit == null) {
+                work.pop();
+                continue;
+            }
+            String parent = commit.parent();
+            if (parent != null && old.containsKey(parent)) {
+                work.push(parent);
+                continue;
+            }
+            String id = work.pop();
+            Map<String, String> parentFiles = parent == null
+                ? new HashMap<>() : getCommit(parent).getBlobs();
+            File file = Utils.join(Main.commits, id);
+            Utils.replaceContents(file, commit.convert(parentFiles).encode());
+            Journal.written(file);
+            old.remove(id);
+        }
+        if (Legacy.REPO_FILE.isFile()) {
+            Legacy.OldRepository repo = Legacy.readRepository();
+            MetaStore.create();
+            Main.stagingDir.mkdir();
+            Main.blobs.mkdir();
+            for (Map.Entry<String, String> branch
+                     : repo.branches().entrySet()) {
+                store.writeRef(branch.getKey(), branch.getValue());
+            }
+            store.writeRef(repo.currentBranch(), repo.head());
+            store.setCurrentBranch(repo.currentBranch());
+            store.removals().clear();
+            store.removals().addAll(repo.removals());
+            store.removalsChanged();
+            save();
+            Legacy.REPO_FILE.delete();
+        }
+        System.out.println("Migrated " + count + " commits.");
+    }
+
+    /** Packs all blobs, delta-encoding each version of a file against the
+     *  previous version found in history.  The RefLock is held throughout,
+     *  so that two gc runs never repack the same blobs at once. */
+    public void gc() throws IOException {
+        try (RefLock lock = RefLock.acquire()) {
+            gcLocked();
+        }
+    }
+
+    /** Does the work of gc, with the RefLock held. */
+    private void gcLocked() throws IOException {
+        ArrayList<Commit> history = new ArrayList<>();
+        for (String id : Utils.plainFilenamesIn(Main.commits)) {
+            history.add(getCommit(id));
+        }
+        history.sort((a, b) -> a.getCommitDate().compareTo(b.getCommitDate()));
+        TreeMap<String, List<String>> versions = new TreeMap<>();
+        for (Commit commit : history) {
+            for (Map.Entry<String, String> blob : commit.getBlobs().entrySet()) {
+                List<String> ids = versions.computeIfAbsent(blob.getKey(),
+                    k -> new ArrayList<>());
+                if (!ids.contains(blob.getValue())) {
+                    ids.add(blob.getValue());
+                }
+            }
+        }
+        BlobStore.repack(versions);
     }
 
     /** Creates a new branch from BRANCHNAME. */
     public void branch(String branchName) {
-        if (branches.containsKey(branchName)) {
+        if (store.readRef(branchName) != null) {
             reportError("A branch with that name already exists.");
         }
-        branches.put(branchName, head);
+        store.writeRef(branchName, head());
     }
 
     /** Removes the branch in this repo with BRANCHNAME. */
     public void removeBranch(String branchName) {
-        branches.remove(branchName);
+        store.deleteRef(branchName);
     }
 
     public void reset(String commitID) throws IOException {
         Commit theCommit = commitExists(commitID);
-        Commit currentCommit = commits.get(head);
         if (theCommit == null) {
             reportError("No commit with that id exists.");
         }
-        String[] currDirNames = Main.CWD.list();
-        for (int i = 0; i < currDirNames.length; i++) {
-            if (!currentCommit.getBlobs().containsKey(currDirNames[i])) {
-                reportError("There is an untracked file in the way; delete it or commit it first.");
+        switchTo(getCommit(head()), theCommit);
+        store.writeRef(store.currentBranch(), theCommit.getSHA_ID());
+        theCommit.clearStage();
+        store.removals().clear();
+        store.removalsChanged();
+    }
+
+    /** Changes the working directory from the files of CURRENT to those
+     *  of TARGET.  The paths whose blobs differ between the two trees are
+     *  written or deleted, as is every other file of TARGET that is
+     *  missing from the working directory or whose contents (hashed
+     *  through the index) are not its blob in TARGET. */
+    private void switchTo(Commit current, Commit target) throws IOException {
+        HashMap<String, String> changes = new HashMap<>();
+        try (Stats.Phase phase = Stats.phase("tree diff")) {
+            Tree.diff(current.getTree(), target.getTree(), "", changes);
+            for (Map.Entry<String, String> blob
+                     : target.getBlobs().entrySet()) {
+                String path = blob.getKey();
+                File file = new File(path);
+                if (!changes.containsKey(path)
+                    && (!file.isFile()
+                        || !index().hash(file).equals(blob.getValue()))) {
+                    changes.put(path, blob.getValue());
+                }
             }
         }
-        for (String fileName : theCommit.getBlobs().keySet()) {
-            checkoutFileHelper(theCommit, fileName);
+        checkUntracked(current, changes.keySet());
+        try (Stats.Phase phase = Stats.phase("write files")) {
+            applyChanges(changes);
         }
-        head = theCommit.getSHA_ID();
     }
 
-    public void merge(String branchName) {
+    /** Merges the head of branch BRANCHNAME into the current branch.
+     *  Whether either head is an ancestor of the other is checked on the
+     *  commit graph (see CommitGraph.isAncestor), as is the split point
+     *  (see CommitGraph.mergeBase), and only files changed since the split
+     *  point on either side are examined. */
+    public void merge(String branchName) throws IOException {
+        if (!Utils.plainFilesUnder(Main.stagingDir).isEmpty()
+            || !store.removals().isEmpty()) {
+            reportError("You have uncommitted changes.");
+        }
+        String otherID = store.readRef(branchName);
+        if (otherID == null) {
+            reportError("A branch with that name does not exist.");
+        } else if (branchName.equals(store.currentBranch())) {
+            reportError("Cannot merge a branch with itself.");
+        }
+        String headID = head();
+        int headPos = position(headID), otherPos = position(otherID);
+        CommitGraph graph = commitGraph();
+        if (graph.isAncestor(otherPos, headPos)) {
+            reportError("Given branch is an ancestor of the current branch.");
+        }
+        boolean fastForward = graph.isAncestor(headPos, otherPos);
+        String splitID = fastForward ? headID
+            : graph.idAt(graph.mergeBase(headPos, otherPos));
+        Commit current = getCommit(headID);
+        Commit other = getCommit(otherID);
+        Commit split = getCommit(splitID);
+        HashMap<String, String> otherChanges = new HashMap<>();
+        Tree.diff(split.getTree(), other.getTree(), "", otherChanges);
+        if (fastForward) {
+            checkUntracked(current, otherChanges.keySet());
+            applyChanges(otherChanges);
+            store.writeRef(store.currentBranch(), otherID);
+            System.out.println("Current branch fast-forwarded.");
+            return;
+        }
+        HashMap<String, String> headChanges = new HashMap<>();
+        Tree.diff(split.getTree(), current.getTree(), "", headChanges);
+        TreeMap<String, String> take = new TreeMap<>();
+        TreeSet<String> conflicts = new TreeSet<>();
+        for (Map.Entry<String, String> change : otherChanges.entrySet()) {
+            String path = change.getKey();
+            if (!headChanges.containsKey(path)) {
+                take.put(path, change.getValue());
+            } else if (!Objects.equals(headChanges.get(path),
+                                       change.getValue())) {
+                conflicts.add(path);
+            }
+        }
+        TreeSet<String> touched = new TreeSet<>(take.keySet());
+        touched.addAll(conflicts);
+        checkUntracked(current, touched);
+        for (Map.Entry<String, String> change : take.entrySet()) {
+            if (change.getValue() == null) {
+                deleteWorkingFile(change.getKey());
+                store.removals().add(change.getKey());
+                store.removalsChanged();
+            } else {
+                writeWorkingFile(change.getKey(), change.getValue());
+                stage(change.getKey());
+            }
+        }
+        for (String path : conflicts) {
+            String headBlob = headChanges.get(path);
+            String otherBlob = otherChanges.get(path);
+            File file = new File(path);
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            try (OutputStream out = new BufferedOutputStream(
+                     Files.newOutputStream(file.toPath()))) {
+                out.write("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8));
+                writeBlob(headBlob, out);
+                out.write("=======\n".getBytes(StandardCharsets.UTF_8));
+                writeBlob(otherBlob, out);
+                out.write(">>>>>>>\n".getBytes(StandardCharsets.UTF_8));
+            }
+            stage(path);
+        }
+        commit("Merged " + branchName + " into " + store.currentBranch()
+               + ".", otherID);
+        if (!conflicts.isEmpty()) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
 
+    /** Reports an error if any of PATHS is an untracked file in the
+     *  working directory, given that CURRENT is the current commit. */
+    private void checkUntracked(Commit current, Collection<String> paths) {
+        for (String path : paths) {
+            if (new File(path).isFile()
+                && Tree.find(current.getTree(), path) == null
+                && !Utils.join(Main.stagingDir, path).exists()) {
+                reportError("There is an untracked file in the way;"
+                            + " delete it, or add and commit it first.");
+            }
+        }
+    }
+
+    /** Writes or deletes each path in CHANGES in the working directory:
+     *  a path mapped to a blob id is written with that blob, and a path
+     *  mapped to null is deleted. */
+    private void applyChanges(Map<String, String> changes) throws IOException {
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                deleteWorkingFile(change.getKey());
+            } else {
+                writeWorkingFile(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    /** Copies the working file PATH into the staging area. */
+    private static void stage(String path) throws IOException {
+        File staged = Utils.join(Main.stagingDir, path);
+        staged.getParentFile().mkdirs();
+        Files.copy(new File(path).toPath(), staged.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        Stats.count(Stats.Counter.BYTES_WRITTEN, staged.length());
+    }
+
+    /** Writes the contents of the blob with ID to OUT, or nothing if ID is
+     *  null. */
+    private void writeBlob(String id, OutputStream out) throws IOException {
+        if (id != null) {
+            BlobStore.writeTo(id, out);
+        }
     }
 
+    /** Ends the current command with the error message MSG, which Main
+     *  prints.  Commands report errors before they change anything, so a
+     *  failed command leaves the repository as it was. */
     public void reportError(String msg) {
-        System.out.println(msg);
-        System.exit(0);
+        throw new GitletException(msg);
     }
 }
@@ -0,0 +1,186 @@
+package gitlet;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Timings and counters of one gitlet process, turned on by the options
+ *  --stats, which prints a summary on the standard error when the
+ *  process is done, and --trace FILE, which also writes every timed
+ *  phase to FILE in the JSON format of chrome://tracing and Perfetto.
+ *  While neither is given, every method here returns after testing one
+ *  static field, and phase returns a shared object whose close does
+ *  nothing.
+ *  @author Felix Yu
+ */
+class Stats {
+
+    /** The quantities counted. */
+    enum Counter {
+        BYTES_READ("bytes read"),
+        BYTES_WRITTEN("bytes written"),
+        FILES_HASHED("files hashed"),
+        BYTES_HASHED("bytes hashed"),
+        OBJECTS_READ("objects read"),
+        CACHE_HITS("cache hits"),
+        CACHE_MISSES("cache misses"),
+        CACHE_EVICTIONS("cache evictions"),
+        INDEX_HITS("index hits"),
+        MONITOR_HITS("fsmonitor hits"),
+        FILTER_SKIPS("path filter skips"),
+        FILTER_FALSE_POSITIVES("path filter false positives");
+
+        /** A counter called NAME in summaries. */
+        Counter(String name) {
+            this.name = name;
+        }
+
+        /** The name of this counter in summaries. */
+        private final String name;
+    }
+
+    /** A timed part of a command, ended by close. */
+    static class Phase implements AutoCloseable {
+
+        /** A phase of NAME starting now. */
+        private Phase(String name) {
+            this.name = name;
+            start = System.nanoTime();
+            thread = Thread.currentThread().getId();
+        }
+
+        @Override
+        public void close() {
+            if (name != null) {
+                record(this, System.nanoTime() - start);
+            }
+        }
+
+        /** The name of this phase, or null for the phase that is not
+         *  timed. */
+        private final String name;
+        /** The value of System.nanoTime() when it started. */
+        private final long start;
+        /** The id of the thread running it. */
+        private final long thread;
+    }
+
+    /** True iff phases and counters are being recorded. */
+    private static boolean enabled;
+    /** The file the trace is written to, or null. */
+    private static File traceFile;
+
+    /** The phase returned while recording is off. */
+    private static final Phase NONE = new Phase(null);
+    /** The counts, indexed by Counter ordinal. */
+    private static final AtomicLongArray COUNTS =
+        new AtomicLongArray(Counter.values().length);
+    /** Total nanoseconds and number of runs of each phase, by name, in the
+     *  order first ended. */
+    private static final Map<String, long[]> TOTALS = new LinkedHashMap<>();
+    /** Every ended phase with its duration, if a trace is written. */
+    private static final List<Object[]> EVENTS = new ArrayList<>();
+    /** The value of System.nanoTime() when recording started. */
+    private static long origin;
+
+    /** Starts recording; the trace is written to TRACE, if not null, by
+     *  report. */
+    static void enable(File trace) {
+        enabled = true;
+        traceFile = trace;
+        origin = System.nanoTime();
+    }
+
+    /** Returns true iff recording. */
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /** Adds N to COUNTER. */
+    static void count(Counter counter, long n) {
+        if (enabled) {
+            COUNTS.addAndGet(counter.ordinal(), n);
+        }
+    }
+
+    /** Returns a phase called NAME that starts now; it should be closed
+     *  by try-with-resources. */
+    static Phase phase(String name) {
+        return enabled ? new Phase(name) : NONE;
+    }
+
+    /** Adds PHASE, which took NANOS nanoseconds, to the totals and the
+     *  trace. */
+    private static synchronized void record(Phase phase, long nanos) {
+        long[] total = TOTALS.computeIfAbsent(phase.name, k -> new long[2]);
+        total[0] += nanos;
+        total[1] += 1;
+        if (traceFile != null) {
+            EVENTS.add(new Object[] { phase, nanos });
+        }
+    }
+
+    /** Prints the summary on OUT and writes the trace, if recording. */
+    static synchronized void report(PrintStream out) {
+        if (!enabled) {
+            return;
+        }
+        long elapsed = System.nanoTime() - origin;
+        int width = "phase".length();
+        for (String phase : TOTALS.keySet()) {
+            width = Math.max(width, phase.length());
+        }
+        for (Counter counter : Counter.values()) {
+            width = Math.max(width, counter.name.length());
+        }
+        String name = "%-" + width + "s";
+        out.printf(name + " %10s %6s%n", "phase", "ms", "runs");
+        for (Map.Entry<String, long[]> e : TOTALS.entrySet()) {
+            out.printf(name + " %10.3f %6d%n", e.getKey(),
+                       e.getValue()[0] / 1e6, e.getValue()[1]);
+        }
+        out.printf(name + " %10.3f%n", "total", elapsed / 1e6);
+        for (Counter counter : Counter.values()) {
+            out.printf(name + " %10d%n", counter.name,
+                       COUNTS.get(counter.ordinal()));
+        }
+        if (traceFile != null) {
+            Utils.writeContents(traceFile, trace(elapsed));
+        }
+    }
+
+    /** Returns the trace of a process that ran for ELAPSED nanoseconds
+     *  as JSON: one complete event per phase, with times in
+     *  microseconds, and the counters as otherData. */
+    private static String trace(long elapsed) {
+        StringBuilder json = new StringBuilder("{\"traceEvents\":[\n");
+        json.append(String.format(Locale.ROOT, "{\"name\":\"gitlet\","
+                                  + "\"ph\":\"X\",\"ts\":0,\"dur\":%.3f,"
+                                  + "\"pid\":1,\"tid\":%d}",
+                                  elapsed / 1e3,
+                                  Thread.currentThread().getId()));
+        for (Object[] event : EVENTS) {
+            Phase phase = (Phase) event[0];
+            String name = phase.name.replace("\\", "\\\\")
+                .replace("\"", "\\\"");
+            json.append(String.format(Locale.ROOT, ",\n{\"name\":\"%s\","
+                                      + "\"ph\":\"X\",\"ts\":%.3f,"
+                                      + "\"dur\":%.3f,\"pid\":1,\"tid\":%d}",
+                                      name, (phase.start - origin) / 1e3,
+                                      (Long) event[1] / 1e3, phase.thread));
+        }
+        json.append("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{");
+        for (Counter counter : Counter.values()) {
+            json.append(String.format(Locale.ROOT, "%s\"%s\":%d",
+                                      counter.ordinal() == 0 ? "" : ",",
+                                      counter.name,
+                                      COUNTS.get(counter.ordinal())));
+        }
+        return json.append("}}\n").toString();
+    }
+}
@@ -0,0 +1,542 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** A directory snapshot: maps the names of the files in a directory to
+ *  their blob ids and the names of its subdirectories to the ids of
+ *  their trees.  Trees are stored in .gitlet/trees under the SHA-1 of
+ *  their listing, so a directory that did not change between two commits
+ *  is the same tree in both.  Paths are relative to the working directory
+ *  and use '/' as separator.  A stored tree is
+ *      magic, version 1 (ints), number of files (int), then for each file
+ *      its name (int length, UTF-8 bytes) and blob id (20 bytes), then
+ *      the same for the subdirectories and their tree ids
+ *
+ *  A directory with more than MAX_ENTRIES entries is instead split by a
+ *  hash of the entry names into up to FANOUT shards, each a tree holding
+ *  the entries whose names fall in it, and split again at the next level
+ *  if it is still too large.  A split node is stored as
+ *      magic, version 2 (ints), level (int), number of shards (int), then
+ *      for each shard its bucket and number of entries (ints) and its
+ *      tree id (20 bytes)
+ *  Whether a node is split depends only on the entries it holds, so equal
+ *  directories still have equal ids, and changing one file of a large
+ *  directory rewrites only the nodes on the way to it rather than the
+ *  whole listing.
+ *  @author Felix Yu
+ */
+class Tree {
+
+    /** First int of a tree file. */
+    private static final int MAGIC = 0x67545245;
+    /** Version of the format of ordinary trees. */
+    private static final int VERSION = 1;
+    /** Version of the format of split nodes. */
+    private static final int SPLIT_VERSION = 2;
+
+    /** Most entries a node holds before it is split. */
+    static final int MAX_ENTRIES = 256;
+    /** Number of bits of the name hash used at each level. */
+    private static final int BUCKET_BITS = 4;
+    /** Number of shards a node is split into. */
+    private static final int FANOUT = 1 << BUCKET_BITS;
+    /** Number of levels the name hash allows. */
+    private static final int LEVELS = 64 / BUCKET_BITS;
+
+    /** Estimated bytes of memory taken by one entry of a tree: the map
+     *  node, a short name and an id. */
+    private static final int ENTRY_SIZE = 200;
+
+    /** Directory holding the trees. */
+    static final File TREES_DIR = Utils.join(Main.gitletDir, "trees");
+
+    /** A shard of a split node: the id of its tree and its number of
+     *  entries. */
+    private static class Shard {
+        /** The tree id. */
+        private final String id;
+        /** Number of entries. */
+        private final int size;
+
+        /** A shard whose tree has ID and SIZE entries. */
+        Shard(String id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+    }
+
+    /** File names in this directory mapped to their blob ids. */
+    private final TreeMap<String, String> blobs = new TreeMap<>();
+
+    /** Subdirectory names mapped to their tree ids. */
+    private final TreeMap<String, String> trees = new TreeMap<>();
+
+    /** The shards of a split node by bucket, or null for a node that
+     *  holds its entries itself. */
+    private TreeMap<Integer, Shard> shards;
+
+    /** For a split node, the level of the name hash that picks its
+     *  shards. */
+    private int level;
+
+    /** Recently used trees, keyed by id. */
+    private static final ObjectCache<Tree> CACHE =
+        new ObjectCache<>(ObjectCache.totalBudget() / 2, Tree::load,
+                          Tree::weight);
+
+    /** Returns the tree with ID, or an empty tree if ID is null. */
+    static Tree read(String id) {
+        if (id == null) {
+            return new Tree();
+        }
+        return CACHE.get(id);
+    }
+
+    /** Returns the tree with ID, read from .gitlet/trees. */
+    private static Tree load(String id) {
+        File file = Utils.join(TREES_DIR, id);
+        if (!file.isFile()) {
+            throw Utils.error("Missing tree %s.", id);
+        }
+        Stats.count(Stats.Counter.OBJECTS_READ, 1);
+        return decode(id, ByteBuffer.wrap(Utils.readContents(file)));
+    }
+
+    /** Returns an estimate of the bytes of memory this tree takes. */
+    long weight() {
+        int entries = blobs.size() + trees.size()
+            + (shards == null ? 0 : shards.size());
+        return 64 + (long) entries * ENTRY_SIZE;
+    }
+
+    /** Returns the id of this tree, storing it if it is not already
+     *  stored. */
+    String write() {
+        StringBuilder listing = new StringBuilder();
+        for (Map.Entry<String, String> e : blobs.entrySet()) {
+            listing.append("blob ").append(e.getValue()).append(' ')
+                .append(e.getKey()).append('\n');
+        }
+        for (Map.Entry<String, String> e : trees.entrySet()) {
+            listing.append("tree ").append(e.getValue()).append(' ')
+                .append(e.getKey()).append('\n');
+        }
+        if (shards != null) {
+            listing.append("level ").append(level).append('\n');
+            for (Map.Entry<Integer, Shard> e : shards.entrySet()) {
+                listing.append("shard ").append(e.getKey()).append(' ')
+                    .append(e.getValue().size).append(' ')
+                    .append(e.getValue().id).append('\n');
+            }
+        }
+        String id = Utils.sha1(listing.toString());
+        File file = Utils.join(TREES_DIR, id);
+        if (!file.exists()) {
+            TREES_DIR.mkdir();
+            Utils.replaceContents(file, encode());
+            Journal.written(file);
+        }
+        CACHE.put(id, this);
+        return id;
+    }
+
+    /** Returns the stored form of this tree. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            if (shards != null) {
+                out.writeInt(SPLIT_VERSION);
+                out.writeInt(level);
+                out.writeInt(shards.size());
+                for (Map.Entry<Integer, Shard> e : shards.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue().size);
+                    out.write(Utils.fromHex(e.getValue().id));
+                }
+            } else {
+                out.writeInt(VERSION);
+                for (TreeMap<String, String> entries : List.of(blobs, trees)) {
+                    out.writeInt(entries.size());
+                    for (Map.Entry<String, String> e : entries.entrySet()) {
+                        Utils.writeString(out, e.getKey());
+                        out.write(Utils.fromHex(e.getValue()));
+                    }
+                }
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding tree.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the tree with ID whose stored form is CONTENTS. */
+    static Tree decode(String id, ByteBuffer contents) {
+        Tree result = new Tree();
+        if (contents.remaining() >= 8
+            && contents.getInt(4) == SPLIT_VERSION) {
+            Utils.checkHeader(contents, MAGIC, SPLIT_VERSION, "tree " + id);
+            result.level = contents.getInt();
+            result.shards = new TreeMap<>();
+            for (int n = contents.getInt(); n > 0; n -= 1) {
+                int bucket = contents.getInt();
+                int size = contents.getInt();
+                result.shards.put(bucket,
+                                  new Shard(Utils.readId(contents), size));
+            }
+            return result;
+        }
+        Utils.checkHeader(contents, MAGIC, VERSION, "tree " + id);
+        for (TreeMap<String, String> entries
+                 : List.of(result.blobs, result.trees)) {
+            for (int n = contents.getInt(); n > 0; n -= 1) {
+                String name = Utils.readString(contents);
+                entries.put(name, Utils.readId(contents));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of entries of this directory. */
+    private int size() {
+        if (shards == null) {
+            return blobs.size() + trees.size();
+        }
+        int result = 0;
+        for (Shard shard : shards.values()) {
+            result += shard.size;
+        }
+        return result;
+    }
+
+    /** Returns the node of this directory that would hold NAME, following
+     *  shards, or null if there is none. */
+    private Tree holder(String name) {
+        Tree node = this;
+        while (node.shards != null) {
+            Shard shard = node.shards.get(bucket(name, node.level));
+            if (shard == null) {
+                return null;
+            }
+            node = read(shard.id);
+        }
+        return node;
+    }
+
+    /** Returns the blob id of the file NAME in this directory, or
+     *  null. */
+    private String blob(String name) {
+        Tree node = holder(name);
+        return node == null ? null : node.blobs.get(name);
+    }
+
+    /** Returns the tree id of the subdirectory NAME of this directory, or
+     *  null. */
+    private String subtree(String name) {
+        Tree node = holder(name);
+        return node == null ? null : node.trees.get(name);
+    }
+
+    /** Adds every file of this directory to BLOBSOUT and every
+     *  subdirectory to TREESOUT, reading all of its shards. */
+    private void collect(Map<String, String> blobsOut,
+                         Map<String, String> treesOut) {
+        blobsOut.putAll(blobs);
+        treesOut.putAll(trees);
+        if (shards != null) {
+            for (Shard shard : shards.values()) {
+                read(shard.id).collect(blobsOut, treesOut);
+            }
+        }
+    }
+
+    /** Returns the shard of a node at LEVEL that holds entries called
+     *  NAME. */
+    private static int bucket(String name, int level) {
+        return (int) (Utils.hash64(name) >>> (BUCKET_BITS * level))
+            & (FANOUT - 1);
+    }
+
+    /** Returns the id of the tree that results from applying CHANGES to
+     *  the tree with id BASE (null for an empty tree).  CHANGES maps paths
+     *  to new blob ids, or to null for paths to remove.  Only the trees on
+     *  the changed paths are rebuilt; every other subtree keeps its id.
+     *  Returns null if the result is empty and ALLOWEMPTY is false. */
+    static String update(String base, Map<String, String> changes,
+                         boolean allowEmpty) {
+        Tree old = read(base);
+        TreeMap<String, String> files = new TreeMap<>();
+        TreeMap<String, HashMap<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                files.put(path, change.getValue());
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash),
+                                           k -> new HashMap<>())
+                    .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        TreeMap<String, String> dirs = new TreeMap<>();
+        for (Map.Entry<String, HashMap<String, String>> sub
+                 : subChanges.entrySet()) {
+            dirs.put(sub.getKey(), update(old.subtree(sub.getKey()),
+                                          sub.getValue(), false));
+        }
+        Shard result = apply(base, 0, files, dirs);
+        if (result != null) {
+            return result.id;
+        }
+        return allowEmpty ? new Tree().write() : null;
+    }
+
+    /** Returns the node at LEVEL that results from setting the files in
+     *  FILES and the subdirectories in DIRS to their ids (removing those
+     *  mapped to null) in the node with ID, or null if it ends up empty.
+     *  Only the shards that FILES and DIRS fall in are rewritten. */
+    private static Shard apply(String id, int level,
+                               SortedMap<String, String> files,
+                               SortedMap<String, String> dirs) {
+        Tree old = read(id);
+        if (old.shards != null) {
+            Tree result = new Tree();
+            result.level = level;
+            result.shards = new TreeMap<>(old.shards);
+            for (int bucket = 0; bucket < FANOUT; bucket += 1) {
+                TreeMap<String, String> bucketFiles =
+                    inBucket(files, bucket, level);
+                TreeMap<String, String> bucketDirs =
+                    inBucket(dirs, bucket, level);
+                if (bucketFiles.isEmpty() && bucketDirs.isEmpty()) {
+                    continue;
+                }
+                Shard before = old.shards.get(bucket);
+                Shard after = apply(before == null ? null : before.id,
+                                    level + 1, bucketFiles, bucketDirs);
+                if (after == null) {
+                    result.shards.remove(bucket);
+                } else {
+                    result.shards.put(bucket, after);
+                }
+            }
+            int size = result.size();
+            if (size > MAX_ENTRIES) {
+                return new Shard(result.write(), size);
+            }
+            Tree joined = new Tree();
+            result.collect(joined.blobs, joined.trees);
+            return size == 0 ? null : new Shard(joined.write(), size);
+        }
+        Tree result = new Tree();
+        result.blobs.putAll(old.blobs);
+        result.trees.putAll(old.trees);
+        set(result.blobs, files);
+        set(result.trees, dirs);
+        int size = result.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size > MAX_ENTRIES && level < LEVELS) {
+            return split(result, level);
+        }
+        return new Shard(result.write(), size);
+    }
+
+    /** Returns a node at LEVEL split into shards, holding the entries of
+     *  ENTRIES, an ordinary tree. */
+    private static Shard split(Tree entries, int level) {
+        TreeMap<Integer, Tree> parts = new TreeMap<>();
+        for (Map.Entry<String, String> e : entries.blobs.entrySet()) {
+            parts.computeIfAbsent(bucket(e.getKey(), level), k -> new Tree())
+                .blobs.put(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : entries.trees.entrySet()) {
+            parts.computeIfAbsent(bucket(e.getKey(), level), k -> new Tree())
+                .trees.put(e.getKey(), e.getValue());
+        }
+        Tree result = new Tree();
+        result.level = level;
+        result.shards = new TreeMap<>();
+        for (Map.Entry<Integer, Tree> part : parts.entrySet()) {
+            Tree tree = part.getValue();
+            int size = tree.size();
+            result.shards.put(part.getKey(),
+                              size > MAX_ENTRIES && level + 1 < LEVELS
+                              ? split(tree, level + 1)
+                              : new Shard(tree.write(), size));
+        }
+        return new Shard(result.write(), entries.size());
+    }
+
+    /** Returns the entries of CHANGES whose names fall in BUCKET at
+     *  LEVEL. */
+    private static TreeMap<String, String> inBucket(
+        SortedMap<String, String> changes, int bucket, int level) {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (bucket(e.getKey(), level) == bucket) {
+                result.put(e.getKey(), e.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Applies CHANGES to ENTRIES, removing the names mapped to null. */
+    private static void set(Map<String, String> entries,
+                            Map<String, String> changes) {
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() == null) {
+                entries.remove(e.getKey());
+            } else {
+                entries.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** Returns the blob id of PATH in the tree with ID, or null if it
+     *  has no such file. */
+    static String find(String id, String path) {
+        Tree tree = read(id);
+        int slash = path.indexOf('/');
+        while (slash >= 0) {
+            String sub = tree.subtree(path.substring(0, slash));
+            if (sub == null) {
+                return null;
+            }
+            tree = read(sub);
+            path = path.substring(slash + 1);
+            slash = path.indexOf('/');
+        }
+        return tree.blob(path);
+    }
+
+    /** Returns the blob id of the file or the tree id of the directory
+     *  PATH in the tree with ID, or null if it has neither.  The empty
+     *  path is the tree itself. */
+    static String entry(String id, String path) {
+        if (path.isEmpty()) {
+            return id;
+        }
+        Tree tree = read(id);
+        int slash = path.indexOf('/');
+        while (slash >= 0) {
+            String sub = tree.subtree(path.substring(0, slash));
+            if (sub == null) {
+                return null;
+            }
+            tree = read(sub);
+            path = path.substring(slash + 1);
+            slash = path.indexOf('/');
+        }
+        String result = tree.blob(path);
+        return result != null ? result : tree.subtree(path);
+    }
+
+    /** Adds every file of the tree with ID to OUT, keyed by its path
+     *  prefixed by PREFIX. */
+    static void flatten(String id, String prefix, Map<String, String> out) {
+        TreeMap<String, String> files = new TreeMap<>();
+        TreeMap<String, String> dirs = new TreeMap<>();
+        read(id).collect(files, dirs);
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            out.put(prefix + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : dirs.entrySet()) {
+            flatten(e.getValue(), prefix + e.getKey() + "/", out);
+        }
+    }
+
+    /** Returns the files of the tree with ID as a read-only map from
+     *  paths to blob ids.  Looking up a path reads only the trees on the
+     *  way to it; only iterating over the map reads the whole tree. */
+    static Map<String, String> files(String id) {
+        return new FileMap(id);
+    }
+
+    /** The files of a tree, read on demand (see files). */
+    private static class FileMap extends AbstractMap<String, String> {
+
+        /** The files of the tree with ID. */
+        FileMap(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String get(Object path) {
+            return path instanceof String ? find(id, (String) path) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object path) {
+            return get(path) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            TreeMap<String, String> all = new TreeMap<>();
+            flatten(id, "", all);
+            return Collections.unmodifiableMap(all).entrySet();
+        }
+
+        /** The tree id. */
+        private final String id;
+    }
+
+    /** Adds to OUT each path (prefixed by PREFIX) whose blob differs
+     *  between the trees FROM and TO, mapped to its blob id in TO or to
+     *  null if TO does not have it.  Either id may be null for an empty
+     *  tree.  Subtrees and shards with equal ids are skipped without being
+     *  read. */
+    static void diff(String from, String to, String prefix,
+                     Map<String, String> out) {
+        if (from != null && from.equals(to)) {
+            return;
+        }
+        Tree a = read(from), b = read(to);
+        if (a.shards != null && b.shards != null && a.level == b.level) {
+            TreeSet<Integer> buckets = new TreeSet<>(a.shards.keySet());
+            buckets.addAll(b.shards.keySet());
+            for (int bucket : buckets) {
+                Shard x = a.shards.get(bucket), y = b.shards.get(bucket);
+                diff(x == null ? null : x.id, y == null ? null : y.id,
+                     prefix, out);
+            }
+            return;
+        }
+        TreeMap<String, String> aBlobs = new TreeMap<>(),
+            aTrees = new TreeMap<>(), bBlobs = new TreeMap<>(),
+            bTrees = new TreeMap<>();
+        a.collect(aBlobs, aTrees);
+        b.collect(bBlobs, bTrees);
+        TreeSet<String> names = new TreeSet<>(aBlobs.keySet());
+        names.addAll(bBlobs.keySet());
+        for (String name : names) {
+            String id = bBlobs.get(name);
+            if (id == null || !id.equals(aBlobs.get(name))) {
+                out.put(prefix + name, id);
+            }
+        }
+        names = new TreeSet<>(aTrees.keySet());
+        names.addAll(bTrees.keySet());
+        for (String name : names) {
+            diff(aTrees.get(name), bTrees.get(name), prefix + name + "/",
+                 out);
+        }
+    }
+}
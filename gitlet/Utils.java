@@ -2,6 +2,7 @@ package gitlet;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
@@ -9,13 +10,19 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -32,33 +39,125 @@ class Utils {
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+                Stats.count(Stats.Counter.BYTES_HASHED, ((byte[]) val).length);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns the SHA-1 hash of the first LEN bytes of BYTES. */
+    static String sha1(byte[] bytes, int len) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        md.update(bytes, 0, len);
+        Stats.count(Stats.Counter.BYTES_HASHED, len);
+        return toHex(md.digest());
+    }
+
+    /** Returns the SHA-1 hash of the contents of FILE, which must be a
+     *  normal file.  The file is streamed through a fixed per-thread
+     *  buffer, so memory use does not depend on its size.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        ByteBuffer buf = HASH_BUFFER.get();
+        try (FileChannel in = FileChannel.open(file.toPath(),
+                                               StandardOpenOption.READ)) {
+            buf.clear();
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
+            Stats.count(Stats.Counter.FILES_HASHED, 1);
+            Stats.count(Stats.Counter.BYTES_HASHED, in.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
+        return toHex(md.digest());
     }
 
+    /** The SHA-1 digest of the current thread, reset before each use. */
+    private static final ThreadLocal<MessageDigest> DIGEST =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException(
+                    "System does not support SHA-1");
+            }
+        });
+
+    /** Size of the buffer used to stream files into the digest. */
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    /** The direct buffer of the current thread used by sha1(File). */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /** Lower-case hexadecimal digits, indexed by value. */
+    private static final char[] HEX_DIGITS =
+        "0123456789abcdef".toCharArray();
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the hexadecimal numeral for the bytes of ID. */
+    static String toHex(byte[] id) {
+        char[] result = new char[2 * id.length];
+        for (int i = 0; i < id.length; i += 1) {
+            result[2 * i] = HEX_DIGITS[(id[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[id[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral ID. */
+    static byte[] fromHex(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) ((Character.digit(id.charAt(2 * i), 16) << 4)
+                                | Character.digit(id.charAt(2 * i + 1), 16));
+        }
+        return result;
+    }
+
+    /** Returns a 64-bit hash of STR, which is not a SHA-1 id but is quick
+     *  and never changes: FNV-1a of its UTF-8 bytes, with the bits
+     *  mixed. */
+    static long hash64(String str) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : str.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    /** Returns H with its bits mixed as in MurmurHash3's finalizer. */
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -94,7 +193,9 @@ class Utils {
             throw new IllegalArgumentException("must be a normal file");
         }
         try {
-            return Files.readAllBytes(file.toPath());
+            byte[] result = Files.readAllBytes(file.toPath());
+            Stats.count(Stats.Counter.BYTES_READ, result.length);
+            return result;
         } catch (IOException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
@@ -120,11 +221,68 @@ class Utils {
             BufferedOutputStream str =
                 new BufferedOutputStream(Files.newOutputStream(file.toPath()));
             for (Object obj : contents) {
-                if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
-                } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
-                }
+                byte[] bytes = obj instanceof byte[] ? (byte[]) obj
+                    : ((String) obj).getBytes(StandardCharsets.UTF_8);
+                str.write(bytes);
+                Stats.count(Stats.Counter.BYTES_WRITTEN, bytes.length);
+            }
+            str.close();
+        } catch (IOException | ClassCastException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the result of concatenating the bytes in CONTENTS to FILE as
+     *  writeContents does, but through a temporary file in .gitlet/tmp
+     *  that is then renamed to FILE, so that FILE always holds either its
+     *  old or its new contents.  Throws IllegalArgumentException in case
+     *  of problems. */
+    static void replaceContents(File file, Object... contents) {
+        try {
+            Main.tmpDir.mkdir();
+            Path tmp = Files.createTempFile(Main.tmpDir.toPath(),
+                                            file.getName(), ".tmp");
+            try {
+                writeContents(tmp.toFile(), contents);
+                Files.move(tmp, file.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forces FILE, which may be a directory, to disk. */
+    static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            /* Some systems cannot open directories for syncing. */
+            if (!file.isDirectory()) {
+                throw excp;
+            }
+        }
+    }
+
+    /** Append the result of concatenating the bytes in CONTENTS to FILE,
+     *  creating it as needed.  Each object in CONTENTS may be either a
+     *  String or a byte array.  Throws IllegalArgumentException in case
+     *  of problems. */
+    static void appendContents(File file, Object... contents) {
+        try {
+            BufferedOutputStream str =
+                new BufferedOutputStream(Files.newOutputStream(
+                    file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND));
+            for (Object obj : contents) {
+                byte[] bytes = obj instanceof byte[] ? (byte[]) obj
+                    : ((String) obj).getBytes(StandardCharsets.UTF_8);
+                str.write(bytes);
+                Stats.count(Stats.Counter.BYTES_WRITTEN, bytes.length);
             }
             str.close();
         } catch (IOException | ClassCastException excp) {
@@ -153,6 +311,30 @@ class Utils {
         writeContents(file, serialize(obj));
     }
 
+    /* SETTINGS */
+
+    /** Returns the size in bytes given by the system property PROPERTY
+     *  or, if it is not set, the environment variable ENV: a number,
+     *  optionally followed by k, m or g.  Returns OTHERWISE if neither
+     *  is set or the value is not a positive size. */
+    static long sizeProperty(String property, String env, long otherwise) {
+        String value = System.getProperty(property, System.getenv(env));
+        if (value == null || value.isBlank()) {
+            return otherwise;
+        }
+        value = value.trim().toLowerCase();
+        int shift = "kmg".indexOf(value.charAt(value.length() - 1)) + 1;
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(value.trim()) << (10 * shift);
+            return size > 0 ? size : otherwise;
+        } catch (NumberFormatException excp) {
+            return otherwise;
+        }
+    }
+
     /* DIRECTORIES */
 
     /** Filter out all but plain files. */
@@ -184,6 +366,35 @@ class Utils {
         return plainFilenamesIn(new File(dir));
     }
 
+    /** Returns the paths, relative to DIR and separated by '/', of all
+     *  plain files in DIR and its subdirectories, other than those in
+     *  .gitlet directories, in lexicographic order.  Returns an empty list
+     *  if DIR does not denote a directory. */
+    static List<String> plainFilesUnder(File dir) {
+        List<String> result = new ArrayList<>();
+        addPlainFiles(dir, "", result);
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Adds the paths of the plain files under DIR to RESULT, each
+     *  prefixed by PREFIX. */
+    private static void addPlainFiles(File dir, String prefix,
+                                      List<String> result) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (file.isFile()) {
+                result.add(prefix + name);
+            } else if (file.isDirectory() && !name.equals(".gitlet")) {
+                addPlainFiles(file, prefix + name + "/", result);
+            }
+        }
+    }
+
     /* OTHER FILE UTILITIES */
 
     /** Return the concatentation of FIRST and OTHERS into a File designator,
@@ -216,7 +427,53 @@ class Utils {
         }
     }
 
+    /* BINARY OBJECT FORMAT */
+
+    /** First two bytes of a file written by Java serialization. */
+    static final int SERIAL_MAGIC = 0xaced;
+
+    /** Checks that CONTENTS starts with the header MAGIC, VERSION of a
+     *  stored object of kind WHAT, and positions it just past the header.
+     *  Files in the old, Java-serialized format are reported as needing
+     *  the migrate command. */
+    static void checkHeader(ByteBuffer contents, int magic, int version,
+                            String what) {
+        if (contents.remaining() >= 2
+            && (contents.getShort(0) & 0xffff) == SERIAL_MAGIC) {
+            throw error("The %s is in an old format; run migrate.", what);
+        }
+        if (contents.remaining() < 8 || contents.getInt() != magic) {
+            throw error("Bad %s.", what);
+        }
+        if (contents.getInt() != version) {
+            throw error("Unknown %s format version.", what);
+        }
+    }
+
+    /** Writes STR to OUT as its length in UTF-8 bytes followed by the
+     *  bytes. */
+    static void writeString(DataOutputStream out, String str)
+        throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Returns a string written by writeString, read from the position
+     *  of IN. */
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
+    /** Returns the hex form of a binary id read from the position of
+     *  IN. */
+    static String readId(ByteBuffer in) {
+        byte[] id = new byte[IdTable.ID_BYTES];
+        in.get(id);
+        return toHex(id);
+    }
 
     /* MESSAGES AND ERROR REPORTING */
 
@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A bounded pool of worker threads for hashing and storing files.  The
+ *  number of threads is taken from the system property gitlet.threads or
+ *  the environment variable GITLET_THREADS, and defaults to the number of
+ *  available processors.  One pool of daemon threads is made on first use
+ *  and shared by every later call, so the commands of a batch or server
+ *  do not each start and stop their own threads.
+ *  @author Felix Yu
+ */
+class Workers {
+
+    /** A task applied to each index of a range. */
+    interface Task<T> {
+        /** Returns the result for index K. */
+        T call(int k) throws IOException;
+    }
+
+    /** The shared pool, or null if it has not been made yet. */
+    private static ExecutorService pool;
+
+    /** The threads of the shared pool. */
+    private static final ThreadGroup THREADS = new ThreadGroup("gitlet-worker");
+
+    /** Returns the shared pool of THREADS threads, making it on first
+     *  use. */
+    private static synchronized ExecutorService pool(int threads) {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(THREADS, r, "gitlet-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    /** Returns the configured number of worker threads. */
+    static int parallelism() {
+        String value = System.getProperty("gitlet.threads",
+                                          System.getenv("GITLET_THREADS"));
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException excp) {
+                /* Fall through to the default. */
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns the results of TASK applied to 0 .. N-1, in that order,
+     *  computing them on at most parallelism() threads.  The first
+     *  exception thrown by any task is rethrown, and the tasks not yet
+     *  run are cancelled.  A task that itself calls map runs its tasks
+     *  on its own thread, since waiting on the shared pool from inside it
+     *  could deadlock. */
+    static <T> List<T> map(int n, Task<T> task) throws IOException {
+        int threads = parallelism();
+        List<T> results = new ArrayList<>(n);
+        if (Math.min(threads, n) <= 1
+            || Thread.currentThread().getThreadGroup() == THREADS) {
+            for (int k = 0; k < n; k += 1) {
+                results.add(task.call(k));
+            }
+            return results;
+        }
+        ExecutorService pool = pool(threads);
+        List<Future<T>> futures = new ArrayList<>(n);
+        try {
+            for (int k = 0; k < n; k += 1) {
+                final int index = k;
+                futures.add(pool.submit(() -> task.call(index)));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException excp) {
+            throw Utils.error("Interrupted.");
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw Utils.error("Internal error: %s", cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
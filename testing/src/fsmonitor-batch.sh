@@ -0,0 +1,41 @@
+# Runs gitlet in batch mode with an FsMonitor (-c fsmonitor=true) on
+# the repository in the current directory, which tracks f.txt and g.txt,
+# and changes those files between its commands.  Each command is sent
+# once the one before it has printed its output, and the output of the
+# batch is printed at the end.
+
+work=$(mktemp -d)
+mkfifo "$work/input"
+java -ea gitlet.Main -c fsmonitor=true batch < "$work/input" \
+    > "$work/output" &
+exec 3> "$work/input"
+
+# send COMMAND: sends COMMAND to the batch and, for status, waits until
+# the batch has printed the end of its output.
+statuses=0
+send() {
+    echo "$1" >&3
+    if [ "$1" = status ]; then
+        statuses=$((statuses + 1))
+        until [ "$(grep -c '^=== Untracked Files ===$' "$work/output")" \
+                -ge "$statuses" ]; do
+            sleep 0.05
+        done
+        sleep 0.2
+    fi
+}
+
+send status
+printf 'Changed f.\n' > f.txt
+rm g.txt
+send status
+send "add f.txt"
+send "rm g.txt"
+send "commit \"Change f, remove g\""
+send status
+printf 'Changed f again.\n' > f.txt
+send status
+exec 3>&-
+wait
+cat "$work/output"
+rm -rf "$work"